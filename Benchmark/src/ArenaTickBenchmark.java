@@ -0,0 +1,76 @@
+package io.benchmark;
+
+import io.server.Arena;
+import io.server.ChannelContext;
+import io.server.Direction;
+import io.server.IOServer;
+import io.server.Player;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A whole tick of an arena with players walking around their own squares, with and without sending the frames
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 3, jvmArgsAppend = {"-Dio.transport=blocking", "-Dio.metricsPort=0", "-Dio.reportInterval=0"})
+public class ArenaTickBenchmark {
+    private static final int SIDE = 3;
+    private static final int SPACING = SIDE + 2; // squares of the neighbours do not touch
+    private static final int COLUMNS = (Arena.WIDTH - 2) / SPACING;
+
+    @Param({"1", "16", "64", "200"})
+    public int players;
+
+    @Param({"true", "false"})
+    public boolean send;
+
+    private Arena arena;
+    private final List<Player> bots = new ArrayList<>();
+    private int[] x0, y0;
+
+    @Setup
+    public void setUp() throws IOException {
+        IOServer server = new IOServer();
+        arena = new Arena(server, 0, null);
+        x0 = new int[players];
+        y0 = new int[players];
+        for (int i = 0; i < players; i++) {
+            x0[i] = 1 + (i % COLUMNS) * SPACING;
+            y0[i] = SIDE + 1 + (i / COLUMNS) * SPACING;
+            ChannelContext ctx = new ChannelContext(new NullConnection());
+            Player player = new Player(ctx, arena, i + 1, "bot" + i, x0[i], y0[i], Direction.UP);
+            if (arena.addPlayer(player) != Arena.AddPlayerResult.SUCCESS) {
+                throw new IllegalStateException("Bot #" + i + " is not added");
+            }
+            ctx.player = player;
+            player.setMoving();
+            bots.add(player);
+        }
+    }
+
+    @Benchmark
+    public int tick() {
+        for (int i = 0; i < bots.size(); i++) {
+            Square.steer(bots.get(i), x0[i], y0[i], SIDE);
+        }
+        arena.tick(send);
+        return arena.currentTick();
+    }
+}
@@ -0,0 +1,82 @@
+package io.benchmark;
+
+import io.server.Arena;
+import io.server.ChannelContext;
+import io.server.Direction;
+import io.server.Player;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The tick of Player which closes a square trail and captures it, by the side of the square; a capture takes
+// microseconds, which a setup before every invocation would distort, so a batch of players is walked around
+// their squares before every iteration, each in its own arena, and every invocation captures with the next one;
+// the score is the time of the whole batch
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 200, batchSize = CaptureBenchmark.BATCH)
+@Measurement(iterations = 50, batchSize = CaptureBenchmark.BATCH)
+@Fork(value = 3, jvmArgsAppend = {"-Dio.transport=blocking", "-Dio.metricsPort=0", "-Dio.reportInterval=0"})
+public class CaptureBenchmark {
+    public static final int BATCH = 100;
+    private static final int COLOR = 1;
+    private static final int X0 = 2;
+    private static final int Y0 = Arena.HEIGHT - 3;
+
+    @Param({"4", "16", "32", "64"})
+    public int side;
+
+    private final Arena[] arenas = new Arena[BATCH];
+    private final Player[] players = new Player[BATCH];
+    private ChannelContext ctx;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUpArenas() {
+        for (int i = 0; i < BATCH; i++) {
+            arenas[i] = new Arena(null, 0, null);
+        }
+        ctx = new ChannelContext(new NullConnection());
+    }
+
+    // Every player stops one tick before it gets back into its territory
+    @Setup(Level.Iteration)
+    public void setUpTrails() {
+        for (int i = 0; i < BATCH; i++) {
+            Arena arena = arenas[i];
+            if (players[i] != null) {
+                arena.removePlayer(players[i]);
+            }
+            Player player = new Player(ctx, arena, COLOR, "bot", X0, Y0, Direction.UP);
+            arena.addPlayer(player);
+            do {
+                Square.steer(player, X0, Y0, side);
+                player.tick();
+            } while (player.cellX() != X0 + 2 || player.cellY() != Y0 || player.fracX() != 0
+                    || player.direction() != Direction.LEFT.ordinal());
+            players[i] = player;
+        }
+        next = 0;
+        System.gc(); // the garbage of the walks is not collected during the batch
+    }
+
+    @Benchmark
+    public int capture() {
+        Player player = players[next++];
+        player.tick();
+        return player.trailLength();
+    }
+}
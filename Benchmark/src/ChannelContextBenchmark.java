@@ -0,0 +1,60 @@
+package io.benchmark;
+
+import io.server.ChannelContext;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Primitive reads and writes of ChannelContext, a message of 4 KB per invocation through a socket that costs nothing
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 3, jvmArgsAppend = {"-Dio.transport=blocking", "-Dio.metricsPort=0", "-Dio.reportInterval=0"})
+public class ChannelContextBenchmark {
+    private static final int VALUES = 512; // of every type, 8 bytes together as the varints are zeros when read
+    private static final int MESSAGE_SIZE = VALUES * (Integer.BYTES + Short.BYTES + Byte.BYTES + Byte.BYTES);
+
+    private ChannelContext ctx;
+
+    @Setup
+    public void setUp() {
+        ctx = new ChannelContext(new NullConnection());
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        for (int i = 0; i < VALUES; i++) {
+            ctx.writeInt(i);
+            ctx.writeShort((short) i);
+            ctx.writeByte((byte) i);
+            ctx.writeVarInt(i & 0x7F);
+        }
+        ctx.flush();
+    }
+
+    @Benchmark
+    public long read() throws IOException {
+        ctx.await(MESSAGE_SIZE);
+        long sum = 0;
+        for (int i = 0; i < VALUES; i++) {
+            sum += ctx.readInt();
+            sum += ctx.readShort();
+            sum += ctx.readByte();
+            sum += ctx.readVarInt();
+        }
+        return sum;
+    }
+}
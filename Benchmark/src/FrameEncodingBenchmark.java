@@ -0,0 +1,70 @@
+package io.benchmark;
+
+import io.server.Arena;
+import io.server.ChannelContext;
+import io.server.Direction;
+import io.server.GameProtocol;
+import io.server.IOServer;
+import io.server.Player;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// GameProtocol.diff and write for a player in the middle of the arena, by the number of cells changed since its last frame
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 3, jvmArgsAppend = {"-Dio.transport=blocking", "-Dio.metricsPort=0", "-Dio.reportInterval=0"})
+public class FrameEncodingBenchmark {
+    private static final int COLOR = 1;
+
+    @Param({"0", "16", "256", "2048"})
+    public int changedCells;
+
+    private GameProtocol gameProtocol;
+    private Arena arena;
+    private ChannelContext ctx;
+    private int since;
+
+    @Setup
+    public void setUp() throws IOException {
+        IOServer server = new IOServer();
+        gameProtocol = server.gameProtocol;
+        arena = new Arena(server, 0, null);
+        ctx = new ChannelContext(new NullConnection());
+        Player player = new Player(ctx, arena, COLOR, "bot", Arena.WIDTH / 2, Arena.HEIGHT / 2, Direction.UP);
+        arena.addPlayer(player);
+        ctx.player = player;
+        ctx.regions.set(0, Arena.REGIONS);
+        since = arena.currentTick() - 1;
+        ctx.ackTick = since;
+
+        // The changes are in the current tick of the journal, so every frame sends all of them again
+        Random random = new Random(changedCells);
+        for (int i = 0; i < changedCells; i++) {
+            arena.cell(random.nextInt(Arena.WIDTH), random.nextInt(Arena.HEIGHT), 2 + random.nextInt(16));
+        }
+    }
+
+    @Benchmark
+    public long write() {
+        GameProtocol.Diff diff = gameProtocol.diff(arena, since);
+        gameProtocol.write(ctx, arena, diff);
+        return ctx.bytesOut();
+    }
+}
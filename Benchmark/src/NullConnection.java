@@ -0,0 +1,45 @@
+package io.benchmark;
+
+import io.server.ChannelContext;
+import io.server.BlockingConnection;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+
+// A socket which takes every write at once and reads zeros, so the benchmarks measure only the server code
+public final class NullConnection implements BlockingConnection {
+    private static final byte[] ZEROS = new byte[4096];
+
+    @Override
+    public void read(ByteBuffer buffer, ChannelContext ctx, CompletionHandler<Integer, ChannelContext> handler) {
+        handler.completed(read(buffer), ctx);
+    }
+
+    @Override
+    public void write(ByteBuffer[] buffers, int offset, int length, ChannelContext ctx, CompletionHandler<Long, ChannelContext> handler) {
+        handler.completed(write(buffers, offset, length), ctx);
+    }
+
+    @Override
+    public int read(ByteBuffer buffer) {
+        int result = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            buffer.put(ZEROS, 0, Math.min(buffer.remaining(), ZEROS.length));
+        }
+        return result;
+    }
+
+    @Override
+    public long write(ByteBuffer[] buffers, int offset, int length) {
+        long result = 0;
+        for (int i = offset; i < offset + length; i++) {
+            result += buffers[i].remaining();
+            buffers[i].position(buffers[i].limit());
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,63 @@
+package io.benchmark;
+
+import io.server.Arena;
+import io.server.ChannelContext;
+import io.server.HandshakeProtocol;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The arena snapshot of the handshake, by the number of rectangular territories on the grid
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 3, jvmArgsAppend = {"-Dio.transport=blocking", "-Dio.metricsPort=0", "-Dio.reportInterval=0"})
+public class SnapshotBenchmark {
+    @Param({"0", "16", "128"})
+    public int territories;
+
+    private Arena arena;
+    private ChannelContext ctx;
+
+    @Setup
+    public void setUp() {
+        arena = new Arena(null, 0, null);
+        ctx = new ChannelContext(new NullConnection());
+        Random random = new Random(territories);
+        for (int i = 0; i < territories; i++) {
+            int color = 1 + i % 255;
+            int width = 3 + random.nextInt(12);
+            int height = 3 + random.nextInt(12);
+            int x0 = random.nextInt(Arena.WIDTH - width);
+            int y0 = random.nextInt(Arena.HEIGHT - height);
+            for (int y = y0; y < y0 + height; y++) {
+                for (int x = x0; x < x0 + width; x++) {
+                    arena.cell(x, y, color);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public long encode() throws IOException {
+        HandshakeProtocol.encodeSnapshot(ctx, arena);
+        long queued = ctx.outstandingBytes();
+        ctx.flush();
+        return queued;
+    }
+}
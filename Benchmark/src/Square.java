@@ -0,0 +1,29 @@
+package io.benchmark;
+
+import io.server.Direction;
+import io.server.Player;
+
+// A player which starts upwards from (x0, y0) walks around a square with the given side and captures it
+// when it is back in its territory, then it keeps going around the same square
+public final class Square {
+    private Square() {
+    }
+
+    // Called before every tick, turns the player at the corners
+    public static void steer(Player player, int x0, int y0, int side) {
+        if (player.fracX() != 0 || player.fracY() != 0) {
+            return;
+        }
+        int x = player.cellX();
+        int y = player.cellY();
+        if (x == x0 && y == y0 - side) {
+            player.inputs.offer(Direction.RIGHT.ordinal());
+        } else if (x == x0 + side && y == y0 - side) {
+            player.inputs.offer(Direction.DOWN.ordinal());
+        } else if (x == x0 + side && y == y0) {
+            player.inputs.offer(Direction.LEFT.ordinal());
+        } else if (x == x0 && y == y0) {
+            player.inputs.offer(Direction.UP.ordinal());
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package io.benchmark;
+
+import io.server.HandshakeProtocol;
+import io.server.IOServer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Compares the transports, run once for each of them:
+// java -Dio.transport=aio|nio|blocking io.benchmark.TransportBenchmark [connections] [seconds]
+// bots connect at once to an in-process server, which gives connections per second,
+// then they move in small squares and the intervals between their frames give the tick jitter
+public final class TransportBenchmark {
+    private static final int[] SQUARE = {2, 1, 3, 0}; // up, right, down, left
+    private static final int FRAMES_PER_SIDE = Math.max(45 * IOServer.SEND_RATE / IOServer.TICK_RATE, 1); // sides of 45 ticks
+
+    public static void main(String... args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        if (connections < 1 || connections > 255) {
+            throw new IllegalArgumentException("Connections must be from 1 to 255, every bot has its own color");
+        }
+
+        IOServer server = new IOServer();
+        server.run();
+        Thread.sleep(500);
+
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch connected = new CountDownLatch(connections);
+        long[][] intervals = new long[connections][];
+        int[] counts = new int[connections];
+        Thread[] bots = new Thread[connections];
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds) + TimeUnit.SECONDS.toNanos(10);
+        for (int i = 0; i < connections; i++) {
+            int bot = i;
+            intervals[bot] = new long[seconds * IOServer.SEND_RATE + 1];
+            bots[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try (Socket socket = new Socket("localhost", 7247)) {
+                    socket.setTcpNoDelay(true);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    handshake(in, out, bot + 1, "bot" + bot);
+                    connected.countDown();
+                    counts[bot] = frames(in, out, intervals[bot], deadline);
+                } catch (Exception e) {
+                    connected.countDown();
+                    System.err.println("Bot #" + bot + ": " + e);
+                }
+            }, "Bot #" + i);
+            bots[i].start();
+        }
+
+        long started = System.nanoTime();
+        start.countDown();
+        connected.await();
+        long connecting = System.nanoTime() - started;
+        for (Thread bot : bots) {
+            bot.join();
+        }
+
+        long[] all = new long[Arrays.stream(counts).sum()];
+        int length = 0;
+        for (int i = 0; i < connections; i++) {
+            System.arraycopy(intervals[i], 0, all, length, counts[i]);
+            length += counts[i];
+        }
+        Arrays.sort(all);
+        double mean = Arrays.stream(all).average().orElse(0);
+        double variance = Arrays.stream(all).mapToDouble(interval -> (interval - mean) * (interval - mean)).average().orElse(0);
+
+        System.out.println("transport\tconnections\tconnections/s\tframes\tmean ms\tjitter ms\tp99 ms\tmax ms");
+        System.out.printf("%s\t%d\t%.0f\t%d\t%.2f\t%.2f\t%.2f\t%.2f%n", IOServer.TRANSPORT, connections,
+                connections / (connecting / 1e9), all.length, mean / 1e6, Math.sqrt(variance) / 1e6,
+                all.length == 0 ? 0 : all[(int) (all.length * 0.99)] / 1e6, all.length == 0 ? 0 : all[all.length - 1] / 1e6);
+        System.exit(0);
+    }
+
+    private static void handshake(DataInputStream in, DataOutputStream out, int color, String username) throws IOException {
+        out.writeInt(HandshakeProtocol.SIGNATURE);
+        if (in.readInt() != HandshakeProtocol.SIGNATURE) {
+            throw new IOException("Invalid signature");
+        }
+        byte[] name = username.getBytes(StandardCharsets.UTF_16BE);
+        out.writeInt(Byte.BYTES + name.length);
+        out.writeByte(color);
+        out.write(name);
+
+        int error = in.readUnsignedShort();
+        if (error != 0) {
+            byte[] message = new byte[error * Character.BYTES];
+            in.readFully(message);
+            throw new IOException(new String(message, StandardCharsets.UTF_16BE));
+        }
+        in.readInt();
+        in.readUnsignedShort();
+        int height = in.readUnsignedShort();
+        in.readUnsignedByte();
+        in.readUnsignedShort(); // tick rate
+        in.readUnsignedByte(); // player step
+        for (int rows = 0; rows < height; ) {
+            int length = in.readInt();
+            int firstRow = in.readUnsignedShort();
+            rows = firstRow + in.readUnsignedShort();
+            in.skipNBytes(length - 2 * Short.BYTES);
+        }
+        in.skipNBytes(in.readInt()); // players
+        out.writeByte(1);
+    }
+
+    // Returns the number of intervals between frames, a bot which runs into something stops earlier
+    private static int frames(DataInputStream in, DataOutputStream out, long[] intervals, long deadline) throws IOException {
+        long previous = 0;
+        int count = 0;
+        for (int frame = 0; count < intervals.length && System.nanoTime() < deadline; frame++) {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (IOException e) {
+                break;
+            }
+            in.skipNBytes(length);
+            long now = System.nanoTime();
+            if (previous != 0) {
+                intervals[count++] = now - previous;
+            }
+            previous = now;
+            out.writeByte(SQUARE[frame / FRAMES_PER_SIDE % SQUARE.length]);
+            out.writeInt(frame / FRAMES_PER_SIDE); // the sequence number of the input
+        }
+        return count;
+    }
+}
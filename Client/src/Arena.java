@@ -1,31 +1,136 @@
 package io.client;
 
-import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.BitSet;
 
 public final class Arena {
+    public static final int JOURNAL_FRAMES = 16; // a drawing thread further behind compares every cell
     public final int width;
     public final int height;
+    public final int regionSize;
+    public final int tickRate; // simulated ticks per second
+    public final int playerStep; // pixels a player moves in a tick
+    public int tick = 0; // of the last frame
+    public long tickTime = 0; // server time of the last frame in milliseconds
+    public long receivedNanos = 0; // local time of the last frame
+    public int inputSeq = 0; // of the last input of this client the server applied by the last frame
+    private final int regionsX;
     private final int[][] cells;
     private final int[][] trails;
-    private final Map<Integer, Player> playersByColor = new HashMap<>();
-    public final Collection<Player> players = Collections.unmodifiableCollection(playersByColor.values());
+    private final Player[] playersByColor = new Player[256];
+    private final Player[] players = new Player[255]; // the first playersCount of them, in no order
+    private int playersCount = 0;
+    // Indices y * width + x of the cells and trails changed by the last frames, copied with the arena,
+    // so the drawing thread finds what changed since the arena it drew last without a lock
+    private final int[][] journal = new int[JOURNAL_FRAMES][];
+    private final int[] journalSizes = new int[JOURNAL_FRAMES];
+    private final int[] journalSince = new int[JOURNAL_FRAMES]; // the tick of the frame before
+    private int journalHead = 0, journalFrames = 0;
 
-    public Arena(int width, int height) {
+    public Arena(int width, int height, int regionSize, int tickRate, int playerStep) {
         this.width = width;
         this.height = height;
+        this.regionSize = regionSize;
+        this.tickRate = tickRate;
+        this.playerStep = playerStep;
+        regionsX = (width + regionSize - 1) / regionSize;
         cells = new int[height][width];
         trails = new int[height][width];
+        for (int i = 0; i < JOURNAL_FRAMES; i++) {
+            journal[i] = new int[64];
+        }
+    }
+
+    public Arena copy() {
+        Arena arena = new Arena(width, height, regionSize, tickRate, playerStep);
+        arena.copyFrom(this);
+        return arena;
+    }
+
+    // Makes this arena the same as the other one of the same size, the players of both are kept apart
+    public void copyFrom(Arena other) {
+        tick = other.tick;
+        tickTime = other.tickTime;
+        receivedNanos = other.receivedNanos;
+        inputSeq = other.inputSeq;
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(other.cells[y], 0, cells[y], 0, width);
+            System.arraycopy(other.trails[y], 0, trails[y], 0, width);
+        }
+        journalHead = other.journalHead;
+        journalFrames = other.journalFrames;
+        for (int i = 0; i < JOURNAL_FRAMES; i++) {
+            int size = other.journalSizes[i];
+            if (journal[i].length < size) {
+                journal[i] = new int[other.journal[i].length];
+            }
+            System.arraycopy(other.journal[i], 0, journal[i], 0, size);
+            journalSizes[i] = size;
+            journalSince[i] = other.journalSince[i];
+        }
+        for (int i = playersCount - 1; i >= 0; i--) {
+            if (other.playersByColor[players[i].color] == null) {
+                removePlayer(players[i].color);
+            }
+        }
+        for (int i = 0; i < other.playersCount; i++) {
+            Player player = other.players[i];
+            Player own = playersByColor[player.color];
+            if (own == null || !own.username.equals(player.username)) {
+                addPlayer(new Player(player));
+            } else {
+                own.copyFrom(player);
+            }
+        }
+    }
+
+    // The changes from now on belong to the frame of the tick
+    public void begin(int tick) {
+        journalHead = (journalHead + 1) % JOURNAL_FRAMES;
+        journalSizes[journalHead] = 0;
+        journalSince[journalHead] = this.tick;
+        journalFrames = Math.min(journalFrames + 1, JOURNAL_FRAMES);
+        this.tick = tick;
     }
 
     public void cell(int x, int y, int color) {
-        cells[y][x] = color;
+        if (cells[y][x] != color) {
+            cells[y][x] = color;
+            changed(x, y);
+        }
     }
 
     public void trail(int x, int y, int color) {
-        trails[y][x] = color;
+        if (trails[y][x] != color) {
+            trails[y][x] = color;
+            changed(x, y);
+        }
+    }
+
+    // The cells of the handshake are before the first frame and are not recorded
+    private void changed(int x, int y) {
+        if (journalFrames == 0) {
+            return;
+        }
+        int size = journalSizes[journalHead];
+        if (size == journal[journalHead].length) {
+            journal[journalHead] = Arrays.copyOf(journal[journalHead], size * 2);
+        }
+        journal[journalHead][size] = y * width + x;
+        journalSizes[journalHead] = size + 1;
+    }
+
+    // Sets the indices of the cells changed after the tick, returns false when the journal does not go back to it
+    public boolean changes(int since, BitSet result) {
+        for (int i = 0, slot = journalHead; i < journalFrames; i++, slot = (slot + JOURNAL_FRAMES - 1) % JOURNAL_FRAMES) {
+            for (int j = 0; j < journalSizes[slot]; j++) {
+                result.set(journal[slot][j]);
+            }
+            if (journalSince[slot] == since) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public int cell(int x, int y) {
@@ -36,15 +141,54 @@ public final class Arena {
         return trails[y][x];
     }
 
+    // Time the server took from the last frame to the given tick, positions are interpolated over it
+    public long frameNanos(int tick) {
+        return this.tick == 0 ? 0 : (tick - this.tick) * 1_000_000_000L / tickRate;
+    }
+
+    public int regionX(int region) {
+        return (region % regionsX) * regionSize;
+    }
+
+    public int regionY(int region) {
+        return (region / regionsX) * regionSize;
+    }
+
+    public int regionWidth(int region) {
+        return Math.min(regionSize, width - regionX(region));
+    }
+
     public void addPlayer(Player player) {
-        playersByColor.put(player.color, player);
+        removePlayer(player.color);
+        playersByColor[player.color] = player;
+        players[playersCount++] = player;
     }
 
     public void removePlayer(int color) {
-        playersByColor.remove(color);
+        Player player = playersByColor[color];
+        if (player == null) {
+            return;
+        }
+        playersByColor[color] = null;
+        for (int i = 0; i < playersCount; i++) {
+            if (players[i] == player) {
+                players[i] = players[--playersCount];
+                players[playersCount] = null;
+                return;
+            }
+        }
     }
 
     public Player playerByColor(int color) {
-        return playersByColor.get(color);
+        return playersByColor[color];
+    }
+
+    public int playersCount() {
+        return playersCount;
+    }
+
+    // Iterated by index, so drawing does not allocate
+    public Player player(int index) {
+        return players[index];
     }
 }
@@ -1,38 +1,32 @@
 package io.client;
 
-import sun.misc.Unsafe;
-
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.IOException;
-import java.lang.invoke.MethodHandle;
-import java.lang.invoke.MethodHandles;
-import java.lang.invoke.MethodHandles.Lookup;
-import java.lang.invoke.MethodType;
-import java.lang.reflect.Field;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
 import java.util.concurrent.TimeUnit;
 
 public final class ChannelContext implements Closeable {
     private static final int BUFFER_SIZE = 32768;
-    private static final Unsafe UNSAFE;
-    private static final Lookup LOOKUP;
-    private static final MethodHandle MH_INVOKER_INVOKE;
+    private static final int MAX_SYNC_DEPTH = 8;
+    private static final ThreadLocal<Trampoline> TRAMPOLINE = ThreadLocal.withInitial(Trampoline::new);
 
-    public final IOClient client;
+    public final Session session;
     private final AsynchronousSocketChannel channel;
-    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE); // grows when a message does not fit
     private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
 
     private int readPosition = 0, readRequested = 0, readLength = 0;
     private int writeStartPos = -1;
+    private volatile long bytesIn = 0, bytesOut = 0; // changed only by the completions, which do not overlap
+    private Continuation continuation; // deferred by the trampoline
 
-    public ChannelContext(IOClient client, AsynchronousSocketChannel channel) {
-        this.client = client;
+    public ChannelContext(Session session, AsynchronousSocketChannel channel) {
+        this.session = session;
         this.channel = channel;
         readBuffer.limit(0);
     }
@@ -40,27 +34,37 @@ public final class ChannelContext implements Closeable {
     @Override
     public void close() throws IOException {
         channel.close();
-        UNSAFE.invokeCleaner(readBuffer);
-        UNSAFE.invokeCleaner(writeBuffer);
         // TODO implement game over screen
     }
 
+    public void fail(Throwable exc) {
+        try {
+            close();
+        } catch (Throwable e) {
+            exc.addSuppressed(e);
+        }
+        session.listener.failed(session, exc);
+    }
+
+    public long bytesIn() {
+        return bytesIn;
+    }
+
+    public long bytesOut() {
+        return bytesOut;
+    }
+
     public void connect(SocketAddress address) {
         channel.connect(address, null, new CompletionHandler<Void, Object>() {
             @Override
             public void completed(Void result, Object attachment) {
                 writeInt(HandshakeProtocol.SIGNATURE);
-                client.handshakeProtocol.handshakeOp1.execute(ChannelContext.this);
+                session.handshakeProtocol.handshakeOp1.execute(ChannelContext.this);
             }
 
             @Override
             public void failed(Throwable exc, Object attachment) {
-                try {
-                    close();
-                } catch (IOException e) {
-                    exc.addSuppressed(e);
-                }
-                exc.printStackTrace();
+                fail(exc);
             }
         });
     }
@@ -123,6 +127,18 @@ public final class ChannelContext implements Closeable {
         return Short.toUnsignedInt(readShort());
     }
 
+    public int readVarInt() {
+        int value = 0;
+        for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+            byte b = readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("VarInt is too big");
+    }
+
     public String readUTF16String(int length) { // length is the symbols count
         char[] string = new char[length];
         for (int i = 0; i < length; i++) {
@@ -192,7 +208,7 @@ public final class ChannelContext implements Closeable {
             throw new IllegalStateException("Calling startCountLength() more than one time in a row");
         }
         writeStartPos = writeBuffer.position();
-        writeBuffer.position(writeStartPos + 2);
+        writeBuffer.position(writeStartPos + Integer.BYTES);
     }
 
     // use only after startCountLength
@@ -202,35 +218,58 @@ public final class ChannelContext implements Closeable {
         }
         int endPos = writeBuffer.position();
         writeBuffer.position(writeStartPos)
-                .putShort((short) (endPos - writeStartPos))
+                .putInt(endPos - writeStartPos - Integer.BYTES)
                 .position(endPos);
         writeStartPos = -1;
     }
 
-    static {
+    // Completions which are satisfied from the buffers run on the calling thread: directly while the stack is shallow,
+    // deeper ones are deferred to the outermost completion, so pipelined messages are processed in a loop
+    private void resume(Continuation continuation) {
+        Trampoline trampoline = TRAMPOLINE.get();
+        if (trampoline.depth >= MAX_SYNC_DEPTH) {
+            this.continuation = continuation;
+            trampoline.deferred.add(this);
+            return;
+        }
+
+        boolean outermost = trampoline.depth == 0;
+        trampoline.depth++;
         try {
-            UNSAFE = (Unsafe) MethodHandles.privateLookupIn(Unsafe.class, MethodHandles.lookup()).findStaticVarHandle(Unsafe.class,
-                    "theUnsafe", Unsafe.class).get();
-            Field implLookupField = Lookup.class.getDeclaredField("IMPL_LOOKUP");
-            LOOKUP = (Lookup) UNSAFE.getObject(UNSAFE.staticFieldBase(implLookupField), UNSAFE.staticFieldOffset(implLookupField));
-            MH_INVOKER_INVOKE = LOOKUP.findStatic(Class.forName("sun.nio.ch.Invoker"), "invoke",
-                    MethodType.methodType(void.class, AsynchronousChannel.class, CompletionHandler.class, Object.class,
-                            Object.class, Throwable.class));
-        } catch (Throwable exc) {
-            throw new InternalError(exc);
+            continuation.resume(this);
+        } finally {
+            trampoline.depth--;
+        }
+        if (!outermost) {
+            return;
+        }
+        for (ChannelContext ctx; (ctx = trampoline.deferred.poll()) != null; ) {
+            Continuation next = ctx.continuation;
+            ctx.continuation = null;
+            trampoline.depth++;
+            try {
+                next.resume(ctx);
+            } finally {
+                trampoline.depth--;
+            }
         }
     }
 
-    private static <V, A> void invoke(AsynchronousChannel channel, CompletionHandler<V, A> handler, A attachment, V value,
-                                      Throwable exc) throws Throwable {
-        MH_INVOKER_INVOKE.invokeExact(channel, handler, attachment, value, exc);
+    private static final class Trampoline {
+        private int depth = 0;
+        private final ArrayDeque<ChannelContext> deferred = new ArrayDeque<>();
+    }
+
+    @FunctionalInterface
+    interface Continuation {
+        void resume(ChannelContext ctx);
     }
 
     public int remaining() {
         return readBuffer.remaining();
     }
 
-    public static final class ReadOp implements Op, CompletionHandler<Integer, ChannelContext> {
+    public static final class ReadOp implements Op, Continuation, CompletionHandler<Integer, ChannelContext> {
         private final int minimal;
         private final Callback callback;
 
@@ -244,6 +283,11 @@ public final class ChannelContext implements Closeable {
             execute(ctx, 0);
         }
 
+        @Override
+        public void resume(ChannelContext ctx) {
+            completed(0, ctx);
+        }
+
         @Override
         public void completed(Integer result, ChannelContext ctx) {
             if (result < 0) {
@@ -251,6 +295,7 @@ public final class ChannelContext implements Closeable {
                 failed(new EOFException("Still need " + neededBytes + " bytes to read"), ctx);
                 return;
             }
+            ctx.bytesIn += result;
             if (ctx.readBuffer.position() - ctx.readPosition < ctx.readRequested) {
                 ctx.channel.read(ctx.readBuffer, 5L, TimeUnit.SECONDS, ctx, this);
                 return;
@@ -271,12 +316,7 @@ public final class ChannelContext implements Closeable {
         public void failed(Throwable exc, ChannelContext ctx) {
             ctx.readPosition = 0;
             ctx.readRequested = 0;
-            try {
-                ctx.close();
-            } catch (Throwable e) {
-                exc.addSuppressed(e);
-            }
-            exc.printStackTrace(); // TODO logging
+            ctx.fail(exc);
         }
 
         public void execute(ChannelContext ctx, int minimal) {
@@ -285,11 +325,7 @@ public final class ChannelContext implements Closeable {
                 ctx.readPosition = ctx.readBuffer.position();
                 ctx.readRequested = 0;
                 ctx.readBuffer.position(ctx.readBuffer.limit());
-                try {
-                    invoke(ctx.channel, this, ctx, 0, null);
-                } catch (Throwable e) {
-                    e.printStackTrace();
-                }
+                ctx.resume(this);
                 return;
             }
 
@@ -300,14 +336,17 @@ public final class ChannelContext implements Closeable {
                 ctx.readBuffer.compact();
                 ctx.readPosition = 0;
             } else {
-                throw new IllegalArgumentException("Data size is larger than buffer size: " + minimal);
+                ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(minimal, ctx.readBuffer.capacity() * 2));
+                buffer.put(ctx.readBuffer);
+                ctx.readBuffer = buffer;
+                ctx.readPosition = 0;
             }
             ctx.readRequested = minimal;
             ctx.channel.read(ctx.readBuffer, 5L, TimeUnit.SECONDS, ctx, this);
         }
     }
 
-    public static final class WriteOp implements Op, CompletionHandler<Integer, ChannelContext> {
+    public static final class WriteOp implements Op, Continuation, CompletionHandler<Integer, ChannelContext> {
         public static final WriteOp AND_CLOSE = new WriteOp(ChannelContext::close);
         private final Callback callback;
 
@@ -321,11 +360,7 @@ public final class ChannelContext implements Closeable {
 
             // Verify has write buffer
             if (!ctx.writeBuffer.hasRemaining()) {
-                try {
-                    invoke(ctx.channel, this, ctx, 0, null);
-                } catch (Throwable exc) {
-                    throw new AssertionError("Impossible", exc);
-                }
+                ctx.resume(this);
                 return;
             }
 
@@ -335,6 +370,8 @@ public final class ChannelContext implements Closeable {
 
         @Override
         public void completed(Integer result, ChannelContext ctx) {
+            ctx.bytesOut += result;
+
             // Verify is fully written
             if (ctx.writeBuffer.hasRemaining()) {
                 ctx.channel.write(ctx.writeBuffer, 5L, TimeUnit.SECONDS, ctx, this);
@@ -352,12 +389,12 @@ public final class ChannelContext implements Closeable {
 
         @Override
         public void failed(Throwable exc, ChannelContext ctx) {
-            try {
-                ctx.close();
-            } catch (Throwable e) {
-                exc.addSuppressed(e);
-            }
-            exc.printStackTrace(); // TODO logging
+            ctx.fail(exc);
+        }
+
+        @Override
+        public void resume(ChannelContext ctx) {
+            completed(0, ctx);
         }
 
         public static WriteOp delegate(Op delegate) {
@@ -376,7 +413,7 @@ public final class ChannelContext implements Closeable {
         @Override
         public void call(ChannelContext ctx) throws Exception { // TODO do private
             if (ctx.readLength <= 0) {
-                int length = ctx.readUnsignedShort();
+                int length = ctx.readInt();
                 if (length <= 0) {
                     callback.call(ctx, length);
                 } else {
@@ -393,7 +430,7 @@ public final class ChannelContext implements Closeable {
 
         @Override
         public void execute(ChannelContext ctx) {
-            readOp.execute(ctx, Short.BYTES);
+            readOp.execute(ctx, Integer.BYTES);
         }
 
         @FunctionalInterface
@@ -0,0 +1,81 @@
+package io.client;
+
+import java.util.Arrays;
+
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.paint.Color;
+
+// Times between the frames drawn by the client in buckets of a millisecond over windows of a few seconds,
+// the overlay shows the last full window so a spike stays on the screen until the next one ends
+public final class FrameTimes {
+    public static final int BUCKETS = 64; // the last one takes the longer frames
+    public static final long WINDOW_NANOS = 5_000_000_000L;
+    private static final int BAR_WIDTH = 3;
+    private static final int BAR_HEIGHT = 8; // for every doubling of the count
+    private static final Color BAR = Color.rgb(6, 21, 106, 0.6);
+    private static final Color TARGET = Color.RED; // the bucket of 60 fps
+
+    private long[] counts = new long[BUCKETS];
+    private long[] shown = new long[BUCKETS];
+    private long count, max;
+    private long last = 0, windowStart = 0;
+    private final StringBuilder text = new StringBuilder();
+    private String summary = "frame ms: measuring";
+
+    public void record(long now) {
+        if (last == 0) {
+            last = windowStart = now;
+            return;
+        }
+        long nanos = now - last;
+        last = now;
+        counts[(int) Math.min(nanos / 1_000_000L, BUCKETS - 1)]++;
+        count++;
+        max = Math.max(max, nanos);
+        if (now - windowStart >= WINDOW_NANOS) {
+            summarize();
+            long[] swap = shown;
+            shown = counts;
+            counts = swap;
+            Arrays.fill(counts, 0);
+            count = max = 0;
+            windowStart = now;
+        }
+    }
+
+    // The bars grow with the logarithm of the count, so single spikes are seen next to thousands of regular frames
+    public void draw(GraphicsContext g, double x, double bottom) {
+        g.setFill(TARGET);
+        g.fillRect(x + 16 * BAR_WIDTH, bottom - 2, BAR_WIDTH - 1, 2);
+        g.setFill(BAR);
+        for (int i = 0; i < BUCKETS; i++) {
+            if (shown[i] != 0) {
+                int height = (64 - Long.numberOfLeadingZeros(shown[i])) * BAR_HEIGHT;
+                g.fillRect(x + i * BAR_WIDTH, bottom - height, BAR_WIDTH - 1, height);
+            }
+        }
+        g.fillText(summary, x, bottom + 12);
+    }
+
+    private void summarize() {
+        text.setLength(0);
+        text.append("frame ms: p50 ").append(percentile(0.5))
+                .append(", p99 ").append(percentile(0.99))
+                .append(", max ").append(max / 1_000_000L)
+                .append(" of ").append(count);
+        summary = text.toString();
+    }
+
+    // The upper bound of the bucket in milliseconds
+    private int percentile(double p) {
+        long rank = (long) Math.ceil(count * p);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return i + 1;
+            }
+        }
+        return BUCKETS;
+    }
+}
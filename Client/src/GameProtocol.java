@@ -3,55 +3,117 @@ package io.client;
 import java.util.BitSet;
 
 public class GameProtocol {
+    private static final int BITMAP = 0;
+    private static final int SPARSE = 1;
+    private static final int RUNS = 2;
+
     public final ChannelContext.WriteOp write;
     public final ChannelContext.ReadLengthOp read;
     private final GameProtocol gameProtocol = this;
 
-    public GameProtocol(IOClient client) {
-        write = new ChannelContext.WriteOp(ctx -> client.player.writing = false);
+    public GameProtocol(Session session) {
+        write = new ChannelContext.WriteOp(ctx -> session.writing = false);
         read = new ChannelContext.ReadLengthOp((ctx, length) -> {
-            Player player = client.player;
-            synchronized (client.lock) {
-                int addedPlayersSize = ctx.readInt();
-                for (int i = 0; i < addedPlayersSize; i++) {
-                    client.arena.addPlayer(new Player(ctx));
-                }
+            Arena arena = session.arena;
+            int tick = ctx.readInt();
+            long tickTime = ctx.readLong();
+            int inputSeq = ctx.readInt();
+            int regionsCount = ctx.readUnsignedShort();
+            long now = System.nanoTime();
+            long frameNanos = arena.frameNanos(tick);
+            arena.begin(tick);
+            arena.tickTime = tickTime;
+            arena.receivedNanos = now;
+            arena.inputSeq = inputSeq;
+            session.acknowledged(inputSeq, now);
 
-                int updatedPlayerSize = ctx.readInt();
-                for (int i = 0; i < updatedPlayerSize; i++) {
-                    int color = ctx.readUnsignedByte();
-                    client.arena.playerByColor(color).update(ctx);
-                }
+            int addedPlayersSize = ctx.readInt();
+            for (int i = 0; i < addedPlayersSize; i++) {
+                arena.addPlayer(new Player(ctx));
+            }
 
-                BitSet updatedCells = BitSet.valueOf(ctx.readBytesWithLength());
-                int bit = 0;
-                int width = client.arena.width;
-                while ((bit = updatedCells.nextSetBit(bit)) != -1) {
-                    int color = ctx.readUnsignedByte();
-                    client.arena.cell(bit % width, bit / width, color);
-                    bit++;
-                }
+            int removedPlayersSize = ctx.readInt();
+            for (int i = 0; i < removedPlayersSize; i++) {
+                int color = ctx.readUnsignedByte();
+                arena.removePlayer(color);
+            }
 
-                BitSet trails = BitSet.valueOf(ctx.readBytesWithLength());
-                bit = 0;
-                while ((bit = trails.nextSetBit(bit)) != -1) {
-                    int color = ctx.readUnsignedByte();
-                    client.arena.trail(bit % width, bit / width, color);
-                    bit++;
-                }
+            // Only the regions around the player, the others are not updated
+            for (int i = 0; i < regionsCount; i++) {
+                int region = ctx.readUnsignedShort();
+                int x0 = arena.regionX(region);
+                int y0 = arena.regionY(region);
+                int width = arena.regionWidth(region);
 
-                int removedPlayersSize = ctx.readInt();
-                for (int i = 0; i < removedPlayersSize; i++) {
+                int updatedPlayerSize = ctx.readUnsignedShort();
+                for (int j = 0; j < updatedPlayerSize; j++) {
                     int color = ctx.readUnsignedByte();
-                    client.arena.removePlayer(color);
+                    arena.playerByColor(color).update(ctx, now, frameNanos);
                 }
+
+                readCells(ctx, arena, x0, y0, width, false);
+                readCells(ctx, arena, x0, y0, width, true);
             }
+            session.publish();
+            session.listener.frame(session, tick);
             gameProtocol.read.execute(ctx);
-            if (!player.writing) {
-                ctx.writeByte((byte) player.nextDirection());
-                player.writing = true;
+            if (!session.writing) {
+                // The last input again until it is changed, the server ignores the repeated ones
+                int input = session.input;
+                Direction direction = input == Session.NO_INPUT ? session.player.direction() : Session.direction(input);
+                int seq = input == Session.NO_INPUT ? 0 : Session.seq(input);
+                ctx.writeByte((byte) direction.ordinal());
+                ctx.writeInt(seq);
+                session.sent(seq, System.nanoTime());
+                session.writing = true;
                 write.execute(ctx);
             }
         });
     }
+
+    // Changed cells or trails of a region in one of the encodings chosen by the server
+    private static void readCells(ChannelContext ctx, Arena arena, int x0, int y0, int width, boolean trails) {
+        int encoding = ctx.readUnsignedByte();
+        switch (encoding) {
+            case BITMAP: {
+                BitSet changed = BitSet.valueOf(ctx.readBytesWithLength());
+                for (int i = changed.nextSetBit(0); i != -1; i = changed.nextSetBit(i + 1)) {
+                    set(arena, x0 + i % width, y0 + i / width, ctx.readUnsignedByte(), trails);
+                }
+                break;
+            }
+            case SPARSE: {
+                int count = ctx.readVarInt();
+                int index = -1;
+                for (int i = 0; i < count; i++) {
+                    index += ctx.readVarInt() + 1;
+                    set(arena, x0 + index % width, y0 + index / width, ctx.readUnsignedByte(), trails);
+                }
+                break;
+            }
+            case RUNS: {
+                int count = ctx.readVarInt();
+                int index = 0;
+                for (int i = 0; i < count; i++) {
+                    index += ctx.readVarInt();
+                    int length = ctx.readVarInt();
+                    int value = ctx.readUnsignedByte();
+                    for (; length > 0; length--, index++) {
+                        set(arena, x0 + index % width, y0 + index / width, value, trails);
+                    }
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown cells encoding: " + encoding);
+        }
+    }
+
+    private static void set(Arena arena, int x, int y, int value, boolean trail) {
+        if (trail) {
+            arena.trail(x, y, value);
+        } else {
+            arena.cell(x, y, value);
+        }
+    }
 }
@@ -1,46 +1,76 @@
 package io.client;
 
 public final class HandshakeProtocol {
-    private final IOClient client;
+    private final Session session;
     public static final int SIGNATURE = 0xdf32a68c;
 
     public final ChannelContext.ReadLengthOp handshakeOp3;
+    public final ChannelContext.ReadLengthOp snapshotOp;
+    public final ChannelContext.ReadLengthOp playersOp;
     public final ChannelContext.ReadOp errOp;
     public final ChannelContext.WriteOp handshakeOp2;
     public final ChannelContext.WriteOp handshakeOp1;
     public final ChannelContext.WriteOp handshakeOp4;
+    private final HandshakeProtocol handshakeProtocol = this;
 
-    public HandshakeProtocol(IOClient client) {
-        this.client = client;
+    public HandshakeProtocol(Session session) {
+        this.session = session;
 
         handshakeOp4 = new ChannelContext.WriteOp(ctx -> {
-            client.gameProtocol.read.execute(ctx);
+            session.listener.joined(session);
+            session.gameProtocol.read.execute(ctx);
         });
 
-        handshakeOp3 = new ChannelContext.ReadLengthOp((ctx, length) -> {
-            client.arena = new Arena(ctx.readUnsignedByte(), ctx.readUnsignedByte());
-            for (int y = 0; y < client.arena.height; y++) {
-                for (int x = 0; x < client.arena.width; x++) {
-                    client.arena.cell(x, y, ctx.readUnsignedByte());
-                    client.arena.trail(x, y, ctx.readUnsignedByte());
-                }
-            }
-
-            client.player = new Player("username", 2, ctx);
-            client.arena.addPlayer(client.player);
+        playersOp = new ChannelContext.ReadLengthOp((ctx, length) -> {
+            session.player = new Player(session.username, session.color, ctx);
+            session.arena.addPlayer(session.player);
             int playersCount = ctx.readInt();
             for (int i = 0; i < playersCount; i++) {
-                client.arena.addPlayer(new Player(ctx));
+                session.arena.addPlayer(new Player(ctx));
             }
+            session.publish();
 
             ctx.writeByte((byte) 1);
             handshakeOp4.execute(ctx);
         });
 
+        // runs of equal cells in chunks of whole rows
+        snapshotOp = new ChannelContext.ReadLengthOp((ctx, length) -> {
+            Arena arena = session.arena;
+            int firstRow = ctx.readUnsignedShort();
+            int rows = ctx.readUnsignedShort();
+            int index = firstRow * arena.width;
+            int end = (firstRow + rows) * arena.width;
+            while (index < end) {
+                int run = ctx.readVarInt();
+                int cell = ctx.readUnsignedByte();
+                int trail = ctx.readUnsignedByte();
+                for (; run > 0; run--, index++) {
+                    arena.cell(index % arena.width, index / arena.width, cell);
+                    arena.trail(index % arena.width, index / arena.width, trail);
+                }
+            }
+
+            if (firstRow + rows < arena.height) {
+                handshakeProtocol.snapshotOp.execute(ctx);
+            } else {
+                playersOp.execute(ctx);
+            }
+        });
+
+        handshakeOp3 = new ChannelContext.ReadLengthOp((ctx, length) -> {
+            session.arena = new Arena(ctx.readUnsignedShort(), ctx.readUnsignedShort(), ctx.readUnsignedByte(),
+                    ctx.readUnsignedShort(), ctx.readUnsignedByte());
+            snapshotOp.execute(ctx);
+        });
+
         errOp = new ChannelContext.ReadOp(0, ctx -> {
             String message = ctx.readUTF16String(ctx.remaining() / 2);
-            System.err.println(message); // TODO implement message in gui
-            System.exit(1);
+            try {
+                ctx.close();
+            } finally {
+                session.listener.rejected(session, message);
+            }
         });
 
         handshakeOp2 = ChannelContext.WriteOp.delegate(new ChannelContext.ReadOp(Short.BYTES, ctx -> {
@@ -60,11 +90,9 @@ public final class HandshakeProtocol {
                 return;
             }
 
-            String name = "username"; // TODO implement username and color choice in gui
-            ctx.writeShort((short) (1 + name.length() * 2));
-            int color = 2;
-            ctx.writeByte((byte) color);
-            ctx.writeUTF16String(name);
+            ctx.writeInt(1 + session.username.length() * 2);
+            ctx.writeByte((byte) session.color);
+            ctx.writeUTF16String(session.username);
 
             handshakeOp2.execute(ctx);
         }));
@@ -3,9 +3,7 @@ package io.client;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.AsynchronousSocketChannel;
-import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.Map;
 
 import javafx.animation.AnimationTimer;
 import javafx.application.Application;
@@ -24,24 +22,50 @@ import javafx.scene.text.Font;
 import javafx.scene.text.TextAlignment;
 import javafx.stage.Stage;
 
-public final class IOClient extends Application {
+public final class IOClient extends Application implements Session.Listener {
     public static final int CELL_SIZE = 30;
+    public static final int SHADOW_SIZE = 6;
+    public static final int MAX_VIEW = 1920; // as IOServer.MAX_VIEW, the server sends only the players around it
+    private static final Color BACKGROUND = Color.rgb(223, 243, 247);
+    private static final Color BORDER = Color.rgb(128, 150, 158);
+    // Of the palette by the color of the player
+    private static final Color[] CELLS = colors(Palette.CELLS);
+    private static final Color[] SHADOWS = colors(Palette.SHADOWS);
+    private static final Color[] PLAYERS = colors(Palette.PLAYERS);
 
-    public final ChannelContext ctx;
-    public final HandshakeProtocol handshakeProtocol = new HandshakeProtocol(this);
-    public final GameProtocol gameProtocol = new GameProtocol(this);
+    public final Session session;
+    private final Prediction prediction;
     public Canvas canvas;
-    public Player player;
-    public Arena arena;
+    private TerritoryLayer territory;
+    // Nothing is allocated on a frame, the fonts are created with the application as they need the toolkit
+    private final Font loadingFont = new Font("Sans Serif", 48);
+    private final Font usernameFont = new Font("Sans Serif", 12.0D);
+    private final FrameTimes frameTimes = new FrameTimes();
+    private final StringBuilder fpsText = new StringBuilder();
+    private String fpsMessage = "";
+    private long fpsTime = 0;
 
-    public final Object lock = new Object();
     private final LinkedList<KeyCode> directionKeys = new LinkedList<>();
     private long startTime = System.currentTimeMillis();
     private int fpsCount = 0;
 
     public IOClient() throws IOException {
-        ctx = new ChannelContext(this, AsynchronousSocketChannel.open());
-        ctx.connect(new InetSocketAddress("localhost", 7247));
+        // TODO implement username and color choice in gui
+        session = new Session("username", 2, true, AsynchronousSocketChannel.open());
+        session.listener = this;
+        prediction = new Prediction(session);
+        session.ctx.connect(new InetSocketAddress("localhost", 7247));
+    }
+
+    @Override
+    public void rejected(Session session, String message) {
+        System.err.println(message); // TODO implement message in gui
+        System.exit(1);
+    }
+
+    @Override
+    public void failed(Session session, Throwable exc) {
+        exc.printStackTrace(); // TODO logging
     }
 
     public static void main(String[] args) {
@@ -51,86 +75,125 @@ public final class IOClient extends Application {
     }
 
     public void draw(long now) {
+        frameTimes.record(now);
         int w = (int) canvas.getWidth();
         int h = (int) canvas.getHeight();
         var g = canvas.getGraphicsContext2D();
-        synchronized (lock) {
-            if (arena == null || player == null) {
-                g.setFill(Color.BLACK);
-                g.fillRect(0, 0, w, h);
-                g.setFill(Color.WHITE);
-                g.setTextAlign(TextAlignment.CENTER);
-                g.setFont(new Font("Sans Serif", 48));
-                g.fillText("Loading...", w / 2, h / 2);
-                return;
-            }
-            g.setFill(Color.rgb(223, 243, 247));
+        // The arena published after the last frame, drawing and decoding do not wait for each other
+        Arena arena = session.front();
+        Player self = arena == null ? null : arena.playerByColor(session.color);
+        if (arena == null || self == null) {
+            g.setFill(Color.BLACK);
             g.fillRect(0, 0, w, h);
+            g.setFill(Color.WHITE);
+            g.setTextAlign(TextAlignment.CENTER);
+            g.setFont(loadingFont);
+            g.fillText("Loading...", w / 2, h / 2);
+            return;
+        }
+        // A larger window gets the view in the middle, the arena is not up to date further away
+        int viewX = Math.max(w - MAX_VIEW, 0) / 2;
+        int viewY = Math.max(h - MAX_VIEW, 0) / 2;
+        g.setFill(BACKGROUND);
+        g.fillRect(0, 0, w, h);
 
-            Map<Short, Player> playersNextByCell = new HashMap<>(arena.players.size());
-            for (Player player : arena.players) {
-                playersNextByCell.put(Util.shortFromBytes(player.nextX(), player.nextY()), player);
-            }
+        // TODO Background and foreground background color 0xF0FAFC
+
+        prediction.update(arena, self, now);
+        int x0 = w / 2 - prediction.displayX() - CELL_SIZE / 2;
+        int y0 = h / 2 - prediction.displayY() - CELL_SIZE / 2;
+
+        g.setFill(BORDER);
+        g.fillRect(x0 - CELL_SIZE, y0 - CELL_SIZE, (arena.width + 2) * CELL_SIZE, CELL_SIZE);
+        g.fillRect(x0 - CELL_SIZE, y0 - CELL_SIZE, CELL_SIZE, (arena.height + 2) * CELL_SIZE);
+        g.fillRect(x0 + arena.width * CELL_SIZE, y0 - CELL_SIZE, CELL_SIZE, (arena.height + 2) * CELL_SIZE);
+        g.fillRect(x0 - CELL_SIZE, y0 + arena.height * CELL_SIZE, (arena.width + 2) * CELL_SIZE, CELL_SIZE);
+
+        int startY = Math.max((viewY - y0) / CELL_SIZE, 0);
+        int endY = Math.min((h - viewY - y0) / CELL_SIZE + 1, arena.height);
+        int startX = Math.max((viewX - x0) / CELL_SIZE, 0);
+        int endX = Math.min((w - viewX - x0) / CELL_SIZE + 1, arena.width);
+        if (territory == null) {
+            territory = new TerritoryLayer(arena.width, arena.height);
+        }
+        territory.update(arena);
+        territory.draw(g, x0, y0, startX, startY, endX, endY);
 
-            // TODO Background and foreground background color 0xF0FAFC
-
-            int x0 = w / 2 - player.displayX() - CELL_SIZE / 2;
-            int y0 = h / 2 - player.displayY() - CELL_SIZE / 2;
-
-            g.setFill(Color.rgb(128, 150, 158));
-            g.fillRect(x0 - CELL_SIZE, y0 - CELL_SIZE, (arena.width + 2) * CELL_SIZE, CELL_SIZE);
-            g.fillRect(x0 - CELL_SIZE, y0 - CELL_SIZE, CELL_SIZE, (arena.height + 2) * CELL_SIZE);
-            g.fillRect(x0 + arena.width * CELL_SIZE, y0 - CELL_SIZE, CELL_SIZE, (arena.height + 2) * CELL_SIZE);
-            g.fillRect(x0 - CELL_SIZE, y0 + arena.height * CELL_SIZE, (arena.width + 2) * CELL_SIZE, CELL_SIZE);
-
-            int startY = Math.max(-y0 / CELL_SIZE, 0);
-            int endY = Math.min((-y0 + h) / CELL_SIZE + 1, arena.height);
-            int startX = Math.max(-x0 / CELL_SIZE, 0);
-            int endX = Math.min((-x0 + w) / CELL_SIZE + 1, arena.width);
-            for (int y = startY; y < endY; y++) {
-                for (int x = startX; x < endX; x++) {
-                    if (arena.cell(x, y) != 0) {
-                        g.setFill(Color.rgb(12, 43, 212));
-                        g.fillRect(x0 + x * CELL_SIZE, y0 + y * CELL_SIZE, CELL_SIZE, CELL_SIZE);
-                        g.setFill(Color.rgb(6, 21, 106));
-                        g.fillRect(x0 + x * CELL_SIZE, y0 + (y + 1) * CELL_SIZE, CELL_SIZE, 6);
-                    }
-
-                    int trail = arena.trail(x, y);
-                    if (trail != 0) {
-                        Player player = playersNextByCell.get(Util.shortFromBytes(x, y));
-                        if (player == null || player.color != trail) {
-                            g.setFill(Color.rgb(12, 43, 212, 0.4)); // TODO implement different colors
-                            g.fillRect(x0 + x * CELL_SIZE, y0 + y * CELL_SIZE, CELL_SIZE, CELL_SIZE);
-                        }
-                    }
-                }
+        // The trail under the cell a player moves to is drawn when the player gets there
+        for (int i = 0; i < arena.playersCount(); i++) {
+            Player player = arena.player(i);
+            int x = player.nextX();
+            int y = player.nextY();
+            if (y < startY || y >= endY || x < startX || x >= endX || arena.trail(x, y) != player.color) {
+                continue;
+            }
+            g.setFill(arena.cell(x, y) != 0 ? CELLS[arena.cell(x, y)] : BACKGROUND);
+            g.fillRect(x0 + x * CELL_SIZE, y0 + y * CELL_SIZE, CELL_SIZE, CELL_SIZE);
+            if (arena.cell(x, y) == 0 && y > 0 && arena.cell(x, y - 1) != 0) {
+                g.setFill(SHADOWS[arena.cell(x, y - 1)]);
+                g.fillRect(x0 + x * CELL_SIZE, y0 + y * CELL_SIZE, CELL_SIZE, SHADOW_SIZE);
             }
+        }
 
-            g.setTextAlign(TextAlignment.CENTER);
-            g.setFont(new Font("Sans Serif", 12.0D));
-            for (Player player : arena.players) {
-                int x = player.displayX();
-                int cellX = player.cellX();
-                int y = player.displayY();
-                int cellY = player.cellY();
-                if (cellY < startY || cellY >= endY || cellX < startX || cellX >= endX) {
-                    continue;
-                }
-                g.setFill(Color.rgb(24, 86, 255));
-                g.fillRect(x0 + x, y0 + y - 2, CELL_SIZE, CELL_SIZE);
-                g.setFill(Color.rgb(6, 21, 106));
-                g.fillRect(x0 + x, y0 + y + CELL_SIZE - 2, CELL_SIZE, 6);
-                g.fillText(player.username, x0 + x + CELL_SIZE / 2, y0 + y - 4.0);
+        g.setTextAlign(TextAlignment.CENTER);
+        g.setFont(usernameFont);
+        for (int i = 0; i < arena.playersCount(); i++) {
+            Player player = arena.player(i);
+            int x = player == self ? prediction.displayX() : player.displayX(now);
+            int cellX = player.cellX();
+            int y = player == self ? prediction.displayY() : player.displayY(now);
+            int cellY = player.cellY();
+            if (cellY < startY || cellY >= endY || cellX < startX || cellX >= endX) {
+                continue;
             }
+            g.setFill(PLAYERS[player.color]);
+            g.fillRect(x0 + x, y0 + y - 2, CELL_SIZE, CELL_SIZE);
+            g.setFill(SHADOWS[player.color]);
+            g.fillRect(x0 + x, y0 + y + CELL_SIZE - 2, CELL_SIZE, SHADOW_SIZE);
+            g.fillText(player.username, x0 + x + CELL_SIZE / 2, y0 + y - 4.0);
+        }
+
+        if (viewX > 0 || viewY > 0) {
+            g.setFill(Color.BLACK);
+            g.fillRect(0, 0, w, viewY);
+            g.fillRect(0, h - viewY, w, viewY);
+            g.fillRect(0, viewY, viewX, h - 2 * viewY);
+            g.fillRect(w - viewX, viewY, viewX, h - 2 * viewY);
+        }
 
-            g.setFill(Color.RED);
+        // The text is built again twice a second and not on every frame
+        fpsCount++;
+        if (now - fpsTime >= 500_000_000L) {
+            fpsTime = now;
             double diff = (System.currentTimeMillis() - startTime) / 1000.0D;
-            fpsCount++;
-            String fpsMessage = fpsCount + " frames, " + String.format("%.02f", diff) + "s, " + String.format("%.02f", fpsCount / Math.max(1.0D, diff)) + " fps";
-            g.setTextAlign(TextAlignment.LEFT);
-            g.fillText(fpsMessage, 2, 10);
+            fpsText.setLength(0);
+            fpsText.append(fpsCount).append(" frames, ");
+            appendHundredths(fpsText, diff).append("s, ");
+            appendHundredths(fpsText, fpsCount / Math.max(1.0D, diff)).append(" fps");
+            fpsMessage = fpsText.toString();
+        }
+        g.setFill(Color.RED);
+        g.setTextAlign(TextAlignment.LEFT);
+        g.fillText(fpsMessage, 2, 10);
+        frameTimes.draw(g, 2, 84);
+    }
+
+    private static Color[] colors(int[] palette) {
+        Color[] colors = new Color[palette.length];
+        for (int i = 0; i < palette.length; i++) {
+            colors[i] = Color.rgb(Palette.red(palette[i]), Palette.green(palette[i]), Palette.blue(palette[i]),
+                    Palette.alpha(palette[i]) / 255.0);
+        }
+        return colors;
+    }
+
+    private static StringBuilder appendHundredths(StringBuilder sb, double value) {
+        long hundredths = Math.round(value * 100);
+        sb.append(hundredths / 100).append('.');
+        if (hundredths % 100 < 10) {
+            sb.append('0');
         }
+        return sb.append(hundredths % 100);
     }
 
     private Direction keyToDirection(KeyCode key) {
@@ -160,18 +223,15 @@ public final class IOClient extends Application {
             Direction direction = keyToDirection(code);
             if (direction != null && !directionKeys.contains(code)) {
                 directionKeys.add(code);
-                synchronized (lock) {
-                    player.nextDirection(direction);
-                }
+                prediction.input(session.input(direction), direction, System.nanoTime());
             }
         });
         primaryStage.addEventHandler(KeyEvent.KEY_RELEASED, (key) -> {
             KeyCode code = key.getCode();
             Direction direction = keyToDirection(code);
             if (direction != null && directionKeys.remove(code) && !directionKeys.isEmpty()) {
-                synchronized (lock) {
-                    player.nextDirection(keyToDirection(directionKeys.getLast()));
-                }
+                Direction last = keyToDirection(directionKeys.getLast());
+                prediction.input(session.input(last), last, System.nanoTime());
             }
         });
 
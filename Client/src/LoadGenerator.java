@@ -0,0 +1,280 @@
+package io.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Headless bots on the sessions of the client, thousands of connections from one JVM for soak and capacity runs:
+// java io.client.LoadGenerator [connections] [seconds] [host] [port]
+// The server takes 255 players per arena, so more bots need it started with -Dio.arenas large enough
+public final class LoadGenerator {
+    private static final String MOVEMENT = System.getProperty("io.bots.movement", "squares"); // or random
+    private static final int RAMP_UP = Integer.getInteger("io.bots.rampUp", 200); // connections per second
+    private static final int REPORT_INTERVAL = Integer.getInteger("io.bots.reportInterval", 5); // in seconds
+    private static final boolean RESPAWN = Boolean.parseBoolean(System.getProperty("io.bots.respawn", "true"));
+    private static final Direction[] SQUARE = {Direction.UP, Direction.RIGHT, Direction.DOWN, Direction.LEFT};
+    private static final int MARGIN = 4; // cells to the border where random bots turn away from it
+    private static final long RESPAWN_DELAY = TimeUnit.SECONDS.toNanos(1);
+
+    private final InetSocketAddress address;
+    private final Bot[] bots;
+    private final int[] generations; // of the bot with the same index, counts its respawns
+    private long finishedBytesIn, finishedBytesOut; // of the bots that are respawned
+    private final Distribution handshakes = new Distribution(TimeUnit.MILLISECONDS.toNanos(1), 60_000);
+    private final Distribution intervals = new Distribution(TimeUnit.MICROSECONDS.toNanos(100), 20_000);
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder joined = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile boolean stopping = false;
+
+    public LoadGenerator(InetSocketAddress address, int connections) {
+        this.address = address;
+        bots = new Bot[connections];
+        generations = new int[connections];
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+        String host = args.length > 2 ? args[2] : "localhost";
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 7247;
+        new LoadGenerator(new InetSocketAddress(host, port), connections).run(seconds);
+        System.exit(0);
+    }
+
+    public void run(int seconds) throws IOException {
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        long reportNanos = TimeUnit.SECONDS.toNanos(REPORT_INTERVAL);
+        long nextReport = start + reportNanos;
+        Report last = new Report(start);
+        int connected = 0;
+        for (long now = start; now < end; now = System.nanoTime()) {
+            // Ramping up spreads the handshakes, the server would rather see them than a burst of thousands
+            while (connected < bots.length && start + connected * 1_000_000_000L / RAMP_UP <= now) {
+                connect(connected++);
+            }
+            if (RESPAWN) {
+                for (int i = 0; i < connected; i++) {
+                    // The bots that died or took a color of the arena try again, those that did not connect stay out
+                    Bot bot = bots[i];
+                    if (bot.closed && (bot.playing || bot.rejected) && now - bot.closedTime >= RESPAWN_DELAY) {
+                        finishedBytesIn += bot.session.ctx.bytesIn();
+                        finishedBytesOut += bot.session.ctx.bytesOut();
+                        connect(i);
+                    }
+                }
+            }
+            if (REPORT_INTERVAL > 0 && now >= nextReport) {
+                Report report = new Report(now);
+                System.out.println(report.describe(last, start));
+                last = report;
+                nextReport += reportNanos;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+
+        Report report = new Report(System.nanoTime());
+        stopping = true;
+        for (int i = 0; i < connected; i++) {
+            bots[i].session.ctx.close();
+        }
+        System.out.println(summary(report, start, connected));
+    }
+
+    private void connect(int id) throws IOException {
+        Bot bot = new Bot(id, generations[id]++);
+        bots[id] = bot;
+        bot.connect();
+    }
+
+    private String summary(Report report, long start, int connected) {
+        double seconds = (report.time - start) / 1e9;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d bots for %.1f s, %d joined, %d rejected, %d failed%n",
+                connected, seconds, joined.sum(), rejected.sum(), failed.sum()));
+        sb.append("handshake ms: ").append(handshakes.describe(1e6)).append('\n');
+        sb.append("frame interval ms: ").append(intervals.describe(1e6)).append('\n');
+        sb.append(String.format("frames %d, %.0f/s; in %.1f KB/s, %.2f KB/s per bot; out %.1f KB/s, %.3f KB/s per bot",
+                report.frames, report.frames / seconds,
+                report.bytesIn / seconds / 1024, report.bytesIn / seconds / 1024 / Math.max(connected, 1),
+                report.bytesOut / seconds / 1024, report.bytesOut / seconds / 1024 / Math.max(connected, 1)));
+        return sb.toString();
+    }
+
+    // Totals since the start
+    private final class Report {
+        final long time;
+        final long frames;
+        long bytesIn, bytesOut;
+        int active;
+
+        Report(long time) {
+            this.time = time;
+            this.frames = LoadGenerator.this.frames.sum();
+            bytesIn = finishedBytesIn;
+            bytesOut = finishedBytesOut;
+            for (Bot bot : bots) {
+                if (bot != null) {
+                    bytesIn += bot.session.ctx.bytesIn();
+                    bytesOut += bot.session.ctx.bytesOut();
+                    active += bot.playing && !bot.closed ? 1 : 0;
+                }
+            }
+        }
+
+        String describe(Report last, long start) {
+            double seconds = (time - last.time) / 1e9;
+            return String.format("%4.0f s: %d playing, %d joined, %d rejected, %d failed; %.0f frames/s, in %.1f KB/s, out %.1f KB/s",
+                    (time - start) / 1e9, active, joined.sum(), rejected.sum(), failed.sum(),
+                    (frames - last.frames) / seconds,
+                    (bytesIn - last.bytesIn) / seconds / 1024, (bytesOut - last.bytesOut) / seconds / 1024);
+        }
+    }
+
+    private final class Bot implements Session.Listener {
+        final Session session;
+        final Random random;
+        volatile boolean playing = false, rejected = false, closed = false;
+        volatile long closedTime;
+        private long connectTime, lastFrame;
+        private int firstTick, lastTurn;
+
+        // The arena is picked by the server, so the colors of the bots may clash in it and a respawn takes a random one
+        Bot(int id, int generation) throws IOException {
+            random = new Random(((long) id << 32) + generation);
+            int color = generation == 0 ? 1 + id % 255 : 1 + random.nextInt(255);
+            session = new Session("bot" + id + "." + generation, color, false, AsynchronousSocketChannel.open());
+            session.listener = this;
+        }
+
+        void connect() {
+            connectTime = System.nanoTime();
+            session.ctx.connect(address);
+        }
+
+        @Override
+        public void joined(Session session) {
+            handshakes.record(System.nanoTime() - connectTime);
+            joined.increment();
+            playing = true;
+        }
+
+        @Override
+        public void frame(Session session, int tick) {
+            long now = System.nanoTime();
+            if (lastFrame == 0) {
+                firstTick = lastTurn = tick;
+            } else {
+                intervals.record(now - lastFrame);
+            }
+            lastFrame = now;
+            frames.increment();
+            Direction direction = "random".equals(MOVEMENT) ? random(session.player, tick) : square(tick);
+            if (direction != null && (session.input == Session.NO_INPUT || Session.direction(session.input) != direction)) {
+                session.input(direction);
+            }
+        }
+
+        // Squares of the same side out of the territory and back, the side is the distance of 0.9 s
+        private Direction square(int tick) {
+            int side = Math.max(session.arena.tickRate * 9 / 10, 1);
+            return SQUARE[(tick - firstTick) / side % SQUARE.length];
+        }
+
+        // Turns aside after a random number of ticks and away from the borders, it never turns back; null goes on
+        private Direction random(Player player, int tick) {
+            Arena arena = session.arena;
+            Direction direction = player.direction();
+            if (player.cellX() < MARGIN && direction == Direction.LEFT
+                    || player.cellX() >= arena.width - MARGIN && direction == Direction.RIGHT) {
+                return player.cellY() < arena.height / 2 ? Direction.DOWN : Direction.UP;
+            }
+            if (player.cellY() < MARGIN && direction == Direction.UP
+                    || player.cellY() >= arena.height - MARGIN && direction == Direction.DOWN) {
+                return player.cellX() < arena.width / 2 ? Direction.RIGHT : Direction.LEFT;
+            }
+            if (tick - lastTurn < arena.tickRate / 2 || random.nextInt(arena.tickRate) != 0) {
+                return null;
+            }
+            lastTurn = tick;
+            boolean horizontal = direction == Direction.LEFT || direction == Direction.RIGHT;
+            return horizontal ? (random.nextBoolean() ? Direction.UP : Direction.DOWN)
+                    : (random.nextBoolean() ? Direction.LEFT : Direction.RIGHT);
+        }
+
+        @Override
+        public void rejected(Session session, String message) {
+            LoadGenerator.this.rejected.increment();
+            this.rejected = true;
+            close();
+        }
+
+        @Override
+        public void failed(Session session, Throwable exc) {
+            // The server closes the connections of the dead players, so these are mostly deaths
+            if (!stopping) {
+                failed.increment();
+            }
+            close();
+        }
+
+        private void close() {
+            closedTime = System.nanoTime();
+            closed = true;
+        }
+    }
+
+    // Linear buckets of the given width, the values past the last bucket are counted in it
+    private static final class Distribution {
+        private final long bucketNanos;
+        private final AtomicLongArray counts;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder(); // in buckets, as the squares of nanos would overflow
+        private final LongAdder sumOfSquares = new LongAdder();
+
+        Distribution(long bucketNanos, int buckets) {
+            this.bucketNanos = bucketNanos;
+            counts = new AtomicLongArray(buckets);
+        }
+
+        void record(long nanos) {
+            long bucket = Math.min(nanos / bucketNanos, counts.length() - 1);
+            counts.incrementAndGet((int) bucket);
+            count.increment();
+            sum.add(bucket);
+            sumOfSquares.add(bucket * bucket);
+        }
+
+        long percentile(double p, long count) {
+            long rank = (long) Math.ceil(count * p);
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return (i + 1) * bucketNanos;
+                }
+            }
+            return counts.length() * bucketNanos;
+        }
+
+        String describe(double unit) {
+            long count = this.count.sum();
+            if (count == 0) {
+                return "none";
+            }
+            double mean = (double) sum.sum() / count;
+            double deviation = Math.sqrt(Math.max((double) sumOfSquares.sum() / count - mean * mean, 0));
+            return String.format("count %d, mean %.2f, stddev %.2f, p50 %.2f, p99 %.2f, p99.9 %.2f, max %.2f",
+                    count, (mean + 0.5) * bucketNanos / unit, deviation * bucketNanos / unit,
+                    percentile(0.5, count) / unit, percentile(0.99, count) / unit,
+                    percentile(0.999, count) / unit, percentile(1, count) / unit);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package io.client;
+
+// Colors of the players by their color index as ARGB, the same on every client; the hues go round by the golden
+// ratio, so the indices next to each other are far apart on the color wheel
+public final class Palette {
+    public static final int SIZE = 256; // 0 is no one
+    public static final int TRAIL_ALPHA = 0x66;
+    public static final int[] CELLS = new int[SIZE];
+    public static final int[] SHADOWS = new int[SIZE];
+    public static final int[] PLAYERS = new int[SIZE];
+    public static final int[] TRAILS = new int[SIZE]; // translucent, over the background
+
+    static {
+        for (int i = 1; i < SIZE; i++) {
+            float hue = (float) ((0.62 + i * 0.618033988749895) % 1.0);
+            CELLS[i] = hsb(hue, 0.94f, 0.83f);
+            SHADOWS[i] = hsb(hue, 0.94f, 0.42f);
+            PLAYERS[i] = hsb(hue, 0.9f, 1.0f);
+            TRAILS[i] = (TRAIL_ALPHA << 24) | (CELLS[i] & 0xFFFFFF);
+        }
+    }
+
+    private Palette() {
+    }
+
+    public static int red(int argb) {
+        return (argb >> 16) & 0xFF;
+    }
+
+    public static int green(int argb) {
+        return (argb >> 8) & 0xFF;
+    }
+
+    public static int blue(int argb) {
+        return argb & 0xFF;
+    }
+
+    public static int alpha(int argb) {
+        return argb >>> 24;
+    }
+
+    // The source over an opaque or a transparent pixel, as the canvas would draw it
+    public static int blend(int source, int destination) {
+        if (alpha(destination) == 0) {
+            return source;
+        }
+        int alpha = alpha(source);
+        int result = 0xFF000000;
+        for (int shift = 0; shift < 24; shift += 8) {
+            int s = (source >> shift) & 0xFF;
+            int d = (destination >> shift) & 0xFF;
+            result |= ((s * alpha + d * (255 - alpha)) / 255) << shift;
+        }
+        return result;
+    }
+
+    // Multiplies the channels by the alpha, which is the format the images of JavaFX keep
+    public static int premultiply(int argb) {
+        int alpha = alpha(argb);
+        if (alpha == 0xFF) {
+            return argb;
+        }
+        return (alpha << 24) | (red(argb) * alpha / 255) << 16 | (green(argb) * alpha / 255) << 8 | blue(argb) * alpha / 255;
+    }
+
+    private static int hsb(float hue, float saturation, float brightness) {
+        float h = hue * 6;
+        int sector = (int) h;
+        float f = h - sector;
+        float p = brightness * (1 - saturation);
+        float q = brightness * (1 - saturation * f);
+        float t = brightness * (1 - saturation * (1 - f));
+        float r, g, b;
+        switch (sector) {
+            case 0:
+                r = brightness;
+                g = t;
+                b = p;
+                break;
+            case 1:
+                r = q;
+                g = brightness;
+                b = p;
+                break;
+            case 2:
+                r = p;
+                g = brightness;
+                b = t;
+                break;
+            case 3:
+                r = p;
+                g = q;
+                b = brightness;
+                break;
+            case 4:
+                r = t;
+                g = p;
+                b = brightness;
+                break;
+            default:
+                r = brightness;
+                g = p;
+                b = q;
+                break;
+        }
+        return 0xFF000000 | Math.round(r * 255) << 16 | Math.round(g * 255) << 8 | Math.round(b * 255);
+    }
+}
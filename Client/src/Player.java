@@ -4,24 +4,44 @@ public final class Player {
     public final int color;
     public final String username;
 
-    public boolean writing = false;
     private int cellX;
     private int fracX;
     private int cellY;
     private int fracY;
     private Direction direction;
-    private Direction nextDirection = null;
+    // Frames may be several ticks apart, so the position moves from where it was drawn to the new one
+    // over the time the server took between the frames
+    private int fromX, fromY;
+    private long fromTime, duration;
 
     public Player(String username, int color, ChannelContext ctx) {
         this.username = username;
         this.color = color;
-        update(ctx);
+        update(ctx, 0L, 0L);
     }
 
     public Player(ChannelContext ctx) {
         this(ctx.readStringWithLength(), ctx.readUnsignedByte(), ctx);
     }
 
+    public Player(Player other) {
+        this.username = other.username;
+        this.color = other.color;
+        copyFrom(other);
+    }
+
+    public void copyFrom(Player other) {
+        cellX = other.cellX;
+        fracX = other.fracX;
+        cellY = other.cellY;
+        fracY = other.fracY;
+        direction = other.direction;
+        fromX = other.fromX;
+        fromY = other.fromY;
+        fromTime = other.fromTime;
+        duration = other.duration;
+    }
+
     public int fracX() {
         return fracX;
     }
@@ -38,12 +58,20 @@ public final class Player {
         return cellY;
     }
 
-    public int displayX() {
-        return cellX * IOClient.CELL_SIZE + fracX;
+    public int displayX(long now) {
+        return interpolate(fromX, cellX * IOClient.CELL_SIZE + fracX, now);
+    }
+
+    public int displayY(long now) {
+        return interpolate(fromY, cellY * IOClient.CELL_SIZE + fracY, now);
     }
 
-    public int displayY() {
-        return cellY * IOClient.CELL_SIZE + fracY;
+    private int interpolate(int from, int to, long now) {
+        long elapsed = now - fromTime;
+        if (elapsed >= duration || elapsed < 0) {
+            return to;
+        }
+        return from + (int) ((to - from) * elapsed / duration);
     }
 
     public int nextX() {
@@ -58,15 +86,11 @@ public final class Player {
         return direction;
     }
 
-    public int nextDirection() {
-        return (nextDirection == null ? direction : nextDirection).ordinal();
-    }
-
-    public void nextDirection(Direction direction) {
-        nextDirection = (direction == this.direction) ? null : direction;
-    }
-
-    public void update(ChannelContext ctx) {
+    public void update(ChannelContext ctx, long now, long duration) {
+        fromX = displayX(now);
+        fromY = displayY(now);
+        fromTime = now;
+        this.duration = duration;
         cellX = ctx.readUnsignedByte();
         fracX = ctx.readByte();
         cellY = ctx.readUnsignedByte();
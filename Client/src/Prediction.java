@@ -0,0 +1,201 @@
+package io.client;
+
+// The local player ahead of the frames by the round trip of its inputs, so a turn is seen on the next drawn frame:
+// the movement of Player.tick on the server is replayed from the last frame with the inputs the server has not
+// applied yet, at the ticks they were made at. A newer frame which disagrees moves the player over CORRECTION_NANOS
+// and not at once. Used on the drawing thread only
+public final class Prediction {
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("io.prediction", "true"));
+    private static final int INPUTS = 32;
+    private static final long CORRECTION_NANOS = 100_000_000L;
+    private static final int MAX_CORRECTION = 2 * IOClient.CELL_SIZE; // a larger one is not smoothed
+
+    private final Session session;
+    // Inputs which are not applied by the server yet in the order of their sequence numbers, a ring
+    private final int[] seqs = new int[INPUTS];
+    private final Direction[] directions = new Direction[INPUTS];
+    private final int[] ticks = new int[INPUTS];
+    private int first = 0, count = 0;
+    private Direction acknowledged = null; // the direction of the last input applied by the server
+
+    // The player in the last frame, the replay starts from it
+    private final State base = new State();
+    private final State state = new State();
+    private Arena arena;
+    private int baseTick = -1;
+    private long baseNanos;
+    private long lead; // the round trip the prediction is ahead by
+
+    private double predictedX, predictedY;
+    private double offsetX, offsetY; // the correction left to spread
+    private long lastNanos;
+    private int displayX, displayY;
+
+    public Prediction(Session session) {
+        this.session = session;
+    }
+
+    public int displayX() {
+        return displayX;
+    }
+
+    public int displayY() {
+        return displayY;
+    }
+
+    // The sequence number is the one of Session.input
+    public void input(int seq, Direction direction, long now) {
+        if (count == INPUTS) {
+            acknowledged = directions[first];
+            first = (first + 1) % INPUTS;
+            count--;
+        }
+        int tick = arena == null ? 0 : (int) targetTick(now);
+        if (count > 0) {
+            tick = Math.max(tick, ticks[(first + count - 1) % INPUTS]); // the round trip may have got shorter
+        }
+        int i = (first + count) % INPUTS;
+        seqs[i] = seq;
+        directions[i] = direction;
+        ticks[i] = tick;
+        count++;
+    }
+
+    // The arena is the one published after the last frame and the player is the local one in it;
+    // a newer frame or round trip changes the prediction, and the difference is spread
+    public void update(Arena arena, Player self, long now) {
+        if (!ENABLED || arena.receivedNanos == 0) { // not before the first frame
+            displayX = self.displayX(now);
+            displayY = self.displayY(now);
+            return;
+        }
+        long roundTrip = session.roundTripNanos;
+        if (arena.tick != baseTick || roundTrip != lead) {
+            boolean correcting = this.arena != null;
+            double oldX = 0, oldY = 0;
+            if (correcting) {
+                predict(now);
+                oldX = predictedX;
+                oldY = predictedY;
+            }
+            lead = roundTrip;
+            if (arena.tick != baseTick) {
+                this.arena = arena;
+                while (count > 0 && seqs[first] <= arena.inputSeq) {
+                    acknowledged = directions[first];
+                    first = (first + 1) % INPUTS;
+                    count--;
+                }
+                // The server keeps the last input it got until the player can turn
+                base.set(self);
+                base.next = acknowledged != base.direction ? acknowledged : null;
+                baseTick = arena.tick;
+                baseNanos = arena.receivedNanos;
+            }
+            predict(now);
+            if (correcting) {
+                offsetX += oldX - predictedX;
+                offsetY += oldY - predictedY;
+                if (Math.abs(offsetX) > MAX_CORRECTION || Math.abs(offsetY) > MAX_CORRECTION) {
+                    offsetX = offsetY = 0;
+                }
+            }
+        } else {
+            predict(now);
+        }
+        double decay = Math.exp(-(double) Math.max(now - lastNanos, 0) / CORRECTION_NANOS);
+        offsetX *= decay;
+        offsetY *= decay;
+        lastNanos = now;
+        displayX = (int) Math.round(predictedX + offsetX);
+        displayY = (int) Math.round(predictedY + offsetY);
+    }
+
+    // The tick the server is at when an input sent now gets to it, with a fraction; a second ahead at most
+    private double targetTick(long now) {
+        long ahead = Math.max(now - baseNanos, 0) + lead;
+        return baseTick + Math.min((double) ahead * arena.tickRate / 1e9, arena.tickRate);
+    }
+
+    private void predict(long now) {
+        double target = targetTick(now);
+        int end = (int) target;
+        state.set(base);
+        int input = 0;
+        for (int tick = baseTick; ; tick++) {
+            for (; input < count && ticks[(first + input) % INPUTS] <= tick; input++) {
+                state.nextDirection(directions[(first + input) % INPUTS]);
+            }
+            if (tick >= end) {
+                break;
+            }
+            state.tick(arena);
+        }
+        int x = state.x();
+        int y = state.y();
+        state.tick(arena);
+        predictedX = x + (state.x() - x) * (target - end);
+        predictedY = y + (state.y() - y) * (target - end);
+    }
+
+    // A position and a direction which moves as Player.tick on the server does
+    private static final class State {
+        int cellX, fracX, cellY, fracY;
+        Direction direction, next;
+
+        void set(Player player) {
+            cellX = player.cellX();
+            fracX = player.fracX();
+            cellY = player.cellY();
+            fracY = player.fracY();
+            direction = player.direction();
+        }
+
+        void set(State other) {
+            cellX = other.cellX;
+            fracX = other.fracX;
+            cellY = other.cellY;
+            fracY = other.fracY;
+            direction = other.direction;
+            next = other.next;
+        }
+
+        void nextDirection(Direction direction) {
+            next = direction == this.direction ? null : direction;
+        }
+
+        // The server ends the game of a player who leaves the arena, so the prediction stops at its border
+        void tick(Arena arena) {
+            boolean isIntegral = fracX == 0 && fracY == 0;
+            if (isIntegral && next != null) {
+                direction = next;
+                next = null;
+            }
+            if (isIntegral) {
+                int x = cellX + direction.xDirection;
+                int y = cellY + direction.yDirection;
+                if (x < 0 || y < 0 || x >= arena.width || y >= arena.height) {
+                    return;
+                }
+            }
+            fracX += direction.xDirection * arena.playerStep;
+            if (Math.abs(fracX) >= IOClient.CELL_SIZE) {
+                fracX -= IOClient.CELL_SIZE * Integer.signum(fracX);
+                cellX += direction.xDirection;
+            }
+            fracY += direction.yDirection * arena.playerStep;
+            if (Math.abs(fracY) >= IOClient.CELL_SIZE) {
+                fracY -= IOClient.CELL_SIZE * Integer.signum(fracY);
+                cellY += direction.yDirection;
+            }
+        }
+
+        int x() {
+            return cellX * IOClient.CELL_SIZE + fracX;
+        }
+
+        int y() {
+            return cellY * IOClient.CELL_SIZE + fracY;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package io.client;
+
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.concurrent.atomic.AtomicReference;
+
+// A connection to the server with the game it sees, drawn by IOClient or played by the bots of LoadGenerator
+public final class Session {
+    public static final int NO_INPUT = -1;
+
+    public final String username;
+    public final int color;
+    public final boolean buffered; // the arena is published to another thread after every frame
+    public final ChannelContext ctx;
+    public final HandshakeProtocol handshakeProtocol = new HandshakeProtocol(this);
+    public final GameProtocol gameProtocol = new GameProtocol(this);
+    // Decoded on the I/O threads, which are the only ones to see them unless they are published
+    public Player player;
+    public Arena arena;
+    public volatile int input = NO_INPUT; // the last direction the player is turned to with its sequence number
+    public volatile boolean writing = false;
+    public volatile long roundTripNanos = 0; // from sending an input to the frame which applied it, on average
+    public Listener listener = new Listener() {
+    };
+    // The arenas go round between the I/O threads, this reference and the drawing thread, so no one waits for another
+    private final AtomicReference<Arena> published = new AtomicReference<>();
+    private Arena front;
+    private int inputSeq = 0; // of the thread which turns the player
+    private int sentSeq = 0; // of the I/O threads
+    private long sentNanos = 0;
+
+    public Session(String username, int color, boolean buffered, AsynchronousSocketChannel channel) {
+        this.username = username;
+        this.color = color;
+        this.buffered = buffered;
+        ctx = new ChannelContext(this, channel);
+    }
+
+    // Turns the player, called on one thread; returns the sequence number of the input
+    public int input(Direction direction) {
+        inputSeq = (inputSeq + 1) & 0x1FFFFFFF;
+        input = inputSeq << 2 | direction.ordinal();
+        return inputSeq;
+    }
+
+    public static Direction direction(int input) {
+        return Direction.VALUES[input & 3];
+    }
+
+    public static int seq(int input) {
+        return input >>> 2;
+    }
+
+    // Called on the I/O threads when an input is sent, and when a frame tells the last one the server applied
+    public void sent(int seq, long now) {
+        if (seq != sentSeq) {
+            sentSeq = seq;
+            sentNanos = now;
+        }
+    }
+
+    public void acknowledged(int seq, long now) {
+        if (sentNanos != 0 && seq == sentSeq) {
+            long sample = now - sentNanos;
+            roundTripNanos = roundTripNanos == 0 ? sample : (roundTripNanos * 7 + sample) / 8;
+            sentNanos = 0;
+        }
+    }
+
+    // Called on the I/O threads after the handshake and every frame, the arena they decode into is taken
+    // from the reference and brought up to date with the published one
+    public void publish() {
+        if (!buffered) {
+            return;
+        }
+        Arena latest = arena;
+        if (published.get() == null) {
+            front = latest.copy();
+            published.set(latest.copy());
+            return;
+        }
+        Arena back = published.getAndSet(latest);
+        back.copyFrom(latest);
+        arena = back;
+        player = back.playerByColor(color);
+    }
+
+    // The newest published arena for the thread that draws, or null before the handshake; the arena it returned
+    // the last time is not used by the I/O threads until the next call
+    public Arena front() {
+        Arena ready = published.get();
+        if (ready == null) {
+            return null;
+        }
+        if (ready.tick > front.tick) {
+            front = published.getAndSet(front);
+        }
+        return front;
+    }
+
+    // Called on the I/O threads
+    public interface Listener {
+        // The handshake is done and the player starts moving
+        default void joined(Session session) {
+        }
+
+        // A frame is applied to the arena, the next direction of the player is sent after this
+        default void frame(Session session, int tick) {
+        }
+
+        default void rejected(Session session, String message) {
+        }
+
+        default void failed(Session session, Throwable exc) {
+        }
+    }
+}
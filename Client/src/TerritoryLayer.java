@@ -0,0 +1,127 @@
+package io.client;
+
+import java.nio.IntBuffer;
+import java.util.BitSet;
+
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+
+// The cells and trails of an arena in an offscreen image with a pixel for every SCALE pixels of the screen,
+// only the cells changed since the last draw are written to it, so drawing does not depend on the territory size.
+// The drawing thread may skip the arenas of some frames, the journal of the arena has the changes of those too
+public final class TerritoryLayer {
+    public static final int SCALE = IOClient.SHADOW_SIZE; // the shadow under a cell is a pixel of the layer
+    public static final int CELL_PIXELS = IOClient.CELL_SIZE / SCALE;
+
+    private final int width, height;
+    private final WritableImage image;
+    private final PixelWriter writer;
+    // The image in the premultiplied format of JavaFX, the changed part of it is uploaded by one call
+    private final int stride;
+    private final int[] pixels;
+    private final IntBuffer buffer;
+    private final int[] cells, trails; // as they are in the image, which starts transparent as an empty arena
+    private final BitSet dirtyCells; // indices y * width + x, the row under the arena is for the shadows
+    private final BitSet changedCells; // in the arena since the last draw, some may be back as they were
+    private Arena arena;
+    private int tick = -1; // nothing is drawn yet
+
+    public TerritoryLayer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        stride = width * CELL_PIXELS;
+        image = new WritableImage(stride, (height + 1) * CELL_PIXELS);
+        writer = image.getPixelWriter();
+        pixels = new int[stride * (height + 1) * CELL_PIXELS];
+        buffer = IntBuffer.wrap(pixels);
+        cells = new int[width * height];
+        trails = new int[width * height];
+        dirtyCells = new BitSet(width * (height + 1));
+        changedCells = new BitSet(width * height);
+    }
+
+    // The arena is published by the session and is not changed while it is drawn
+    public void update(Arena arena) {
+        if (arena == this.arena && arena.tick == tick) {
+            return;
+        }
+        this.arena = arena;
+        changedCells.clear();
+        if (arena.changes(tick, changedCells)) {
+            for (int i = changedCells.nextSetBit(0); i != -1; i = changedCells.nextSetBit(i + 1)) {
+                compare(arena, i % width, i / width, i);
+            }
+        } else {
+            for (int y = 0, i = 0; y < height; y++) {
+                for (int x = 0; x < width; x++, i++) {
+                    compare(arena, x, y, i);
+                }
+            }
+        }
+        tick = arena.tick;
+        if (dirtyCells.isEmpty()) {
+            return;
+        }
+
+        int minX = width, maxX = 0;
+        for (int i = dirtyCells.nextSetBit(0); i != -1; i = dirtyCells.nextSetBit(i + 1)) {
+            int x = i % width;
+            paint(x, i / width);
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+        }
+        int minY = dirtyCells.nextSetBit(0) / width;
+        int maxY = (dirtyCells.length() - 1) / width;
+        dirtyCells.clear();
+
+        buffer.position(minY * CELL_PIXELS * stride + minX * CELL_PIXELS);
+        writer.setPixels(minX * CELL_PIXELS, minY * CELL_PIXELS, (maxX - minX + 1) * CELL_PIXELS,
+                (maxY - minY + 1) * CELL_PIXELS, PixelFormat.getIntArgbPreInstance(), buffer, stride);
+    }
+
+    private void compare(Arena arena, int x, int y, int i) {
+        int cell = arena.cell(x, y);
+        int trail = arena.trail(x, y);
+        if (cell != cells[i] || trail != trails[i]) {
+            cells[i] = cell;
+            trails[i] = trail;
+            dirtyCells.set(i);
+            dirtyCells.set(i + width); // its shadow
+        }
+    }
+
+    // Scales the visible cells from startX, startY to endX, endY exclusive to the canvas where the arena starts at x0, y0
+    public void draw(GraphicsContext g, int x0, int y0, int startX, int startY, int endX, int endY) {
+        int rows = Math.min(endY + 1, height + 1) - startY;
+        int columns = endX - startX;
+        if (rows <= 0 || columns <= 0) {
+            return;
+        }
+        g.setImageSmoothing(false);
+        g.drawImage(image, startX * CELL_PIXELS, startY * CELL_PIXELS, columns * CELL_PIXELS, rows * CELL_PIXELS,
+                x0 + startX * IOClient.CELL_SIZE, y0 + startY * IOClient.CELL_SIZE,
+                columns * IOClient.CELL_SIZE, rows * IOClient.CELL_SIZE);
+    }
+
+    // A cell in the colors of the palette, covered by the shadow of the cell above at the top unless it is owned,
+    // and by its trail
+    private void paint(int x, int y) {
+        int i = y * width + x;
+        int cell = y < height ? cells[i] : 0;
+        int trail = y < height ? trails[i] : 0;
+        int above = y > 0 ? cells[i - width] : 0;
+        int offset = y * CELL_PIXELS * stride + x * CELL_PIXELS;
+        for (int py = 0; py < CELL_PIXELS; py++, offset += stride) {
+            int argb = cell != 0 ? Palette.CELLS[cell] : (above != 0 && py == 0) ? Palette.SHADOWS[above] : 0;
+            if (trail != 0) {
+                argb = Palette.blend(Palette.TRAILS[trail], argb);
+            }
+            argb = Palette.premultiply(argb);
+            for (int px = 0; px < CELL_PIXELS; px++) {
+                pixels[offset + px] = argb;
+            }
+        }
+    }
+}
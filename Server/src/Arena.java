@@ -1,35 +1,102 @@
 package io.server;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class Arena {
     public static final int WIDTH = 90;
     public static final int HEIGHT = 70;
+    public static final int JOURNAL_TICKS = 256;
+    public static final int REGION_SIZE = 16;
+    public static final int REGIONS_X = (WIDTH + REGION_SIZE - 1) / REGION_SIZE;
+    public static final int REGIONS_Y = (HEIGHT + REGION_SIZE - 1) / REGION_SIZE;
+    public static final int REGIONS = REGIONS_X * REGIONS_Y;
 
+    public final int id;
     private final IOServer server;
-    private final int[][] cells = new int[HEIGHT][WIDTH];
-    private final int[][] trails = new int[HEIGHT][WIDTH];
+    private final ScheduledExecutorService executor;
+    private final AtomicInteger load = new AtomicInteger();
+    // Cell color in the high byte and trail color in the low one
+    private final short[] grid = new short[HEIGHT * WIDTH];
     private final Map<Integer, Player> playersByColor = new HashMap<>();
+    private final Player[] owners = new Player[256]; // indexed by color to track owned cells without boxing
     private final Map<String, Player> playersByUsername = new HashMap<>();
     private final Collection<Player> players = Collections.unmodifiableCollection(playersByColor.values());
 
-    public Arena(IOServer server) {
+    public final TerritoryFill territoryFill = new TerritoryFill(WIDTH, HEIGHT);
+    public final ChangeJournal journal = new ChangeJournal(JOURNAL_TICKS, HEIGHT * WIDTH);
+    private final List<List<Player>> playersByRegion = new ArrayList<>(REGIONS);
+    // Encoded once per tick and shared between the players
+    private final Map<Integer, GameProtocol.Diff> diffs = new HashMap<>();
+    public final ByteBuffer[] regionSnapshots = new ByteBuffer[REGIONS];
+    public final List<ByteBuffer> frameParts = new ArrayList<>();
+    public final List<Player> enteringPlayers = new ArrayList<>();
+    public final BitSet visibleColors = new BitSet(256);
+    // Phases of the current tick which are measured deeper down, in nanoseconds
+    public long fillNanos = 0;
+    public long encodeNanos = 0;
+    private long journalNanos = 0;
+    private long writeNanos = 0;
+    private int tick = 1;
+    private long tickTime; // in milliseconds since the epoch
+    private long nextTickNanos;
+    private int sendClock = 0; // frames are sent when it reaches the tick rate
+
+    public Arena(IOServer server, int id, ScheduledExecutorService executor) {
         this.server = server;
+        this.id = id;
+        this.executor = executor;
+        for (int i = 0; i < REGIONS; i++) {
+            playersByRegion.add(new ArrayList<>());
+        }
+        journal.begin(tick);
+    }
+
+    public void start() {
+        nextTickNanos = System.nanoTime();
+        executor.schedule(this::runTicks, 0L, TimeUnit.NANOSECONDS);
+    }
+
+    // Arena state may be accessed only from its tick thread, other threads must hand work over here
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    public void execute(ChannelContext ctx, ChannelContext.Callback task) {
+        executor.execute(() -> {
+            try {
+                task.call(ctx);
+            } catch (Throwable exc) {
+                ctx.fail(exc);
+            }
+        });
+    }
+
+    public int load() {
+        return load.get();
+    }
+
+    public void reserve() {
+        load.incrementAndGet();
     }
 
     public AddPlayerResult addPlayer(Player player) {
         if (playersByColor.containsKey(player.color)) {
+            load.decrementAndGet();
             return AddPlayerResult.DUPLICATE_COLOR;
         }
         if (playersByUsername.containsKey(player.username)) {
+            load.decrementAndGet();
             return AddPlayerResult.DUPLICATE_USERNAME;
         }
 
-        for (Player p : players) {
-            p.addedPlayers.add(player);
-        }
+        player.addedTick = tick;
         playersByColor.put(player.color, player);
+        owners[player.color] = player;
         playersByUsername.put(player.username, player);
         for (int xOffset = - 1; xOffset <= 1; xOffset++) {
             for (int yOffset = -1; yOffset <= 1; yOffset++) {
@@ -38,28 +105,77 @@ public final class Arena {
                 player.cell(x, y);
             }
         }
+        updateRegion(player);
         return AddPlayerResult.SUCCESS;
     }
 
     public void removePlayer(Player player) {
-        playersByColor.remove(player.color);
-        playersByUsername.remove(player.username);
-        for (Player p : players) {
-            p.removedPlayers.add(player);
+        if (!playersByColor.remove(player.color, player)) {
+            return;
         }
+        playersByUsername.remove(player.username);
+        load.decrementAndGet();
+        playersByRegion.get(player.region).remove(player);
+        owners[player.color] = null;
 
-        for (short cell : player.cells()) {
-            cells[Util.secondFromShort(cell)][Util.firstFromShort(cell)] = 0;
+        for (int cell = player.nextCell(0); cell != -1; cell = player.nextCell(cell + 1)) {
+            cell(cell % WIDTH, cell / WIDTH, 0);
         }
-        for (short trail : player.trail()) {
-            trails[Util.secondFromShort(trail)][Util.firstFromShort(trail)] = 0;
+        for (int i = 0; i < player.trailLength(); i++) {
+            int trail = player.trailCell(i);
+            trail(trail % WIDTH, trail / WIDTH, 0);
         }
     }
 
+    public Player playerByColor(int color) {
+        return playersByColor.get(color);
+    }
+
     public Collection<Player> players() {
         return players;
     }
 
+    public List<Player> playersIn(int region) {
+        return playersByRegion.get(region);
+    }
+
+    public static int region(int x, int y) {
+        return (y / REGION_SIZE) * REGIONS_X + x / REGION_SIZE;
+    }
+
+    private void updateRegion(Player player) {
+        int region = region(player.cellX(), player.cellY());
+        if (region != player.region) {
+            if (player.region != -1) {
+                playersByRegion.get(player.region).remove(player);
+            }
+            playersByRegion.get(region).add(player);
+            player.region = region;
+        }
+    }
+
+    // A line per connection of the arena, for the metrics endpoint
+    public void describeConnections(StringBuilder builder) {
+        for (Player player : players) {
+            ChannelContext ctx = player.ctx;
+            builder.append(id).append('\t').append(player.color).append('\t').append(player.username)
+                    .append('\t').append(ctx.bytesIn()).append('\t').append(ctx.bytesOut())
+                    .append('\t').append(ctx.stallNanos() / 1_000_000L).append('\t').append(ctx.outstandingBytes())
+                    .append('\t').append(ctx.queuedBuffers()).append('\t').append(tick - ctx.ackTick)
+                    .append('\t').append(String.format("%.2f", player.territoryPercentage())).append('\n');
+        }
+    }
+
+    // the tick which the changes are currently recorded to
+    public int currentTick() {
+        return tick;
+    }
+
+    // when the current tick started
+    public long tickTime() {
+        return tickTime;
+    }
+
     public enum AddPlayerResult {
         SUCCESS,
         DUPLICATE_USERNAME,
@@ -67,33 +183,87 @@ public final class Arena {
     }
 
     public int cell(int x, int y) {
-        return cells[y][x];
+        return cellAt(y * WIDTH + x);
+    }
+
+    public int cellAt(int index) {
+        return (grid[index] >> Byte.SIZE) & 0xFF;
     }
 
     public void cell(int x, int y, int color) {
-        if (cells[y][x] != color) {
-            cells[y][x] = color;
-            for (Player p : players) {
-                p.updatedCells.set(y * WIDTH + x);
+        int index = y * WIDTH + x;
+        int previous = cellAt(index);
+        if (previous != color) {
+            grid[index] = (short) ((color << Byte.SIZE) | trailAt(index));
+            journal.cell(index);
+            if (owners[previous] != null) {
+                owners[previous].cellChanged(index, false);
+            }
+            if (owners[color] != null) {
+                owners[color].cellChanged(index, true);
             }
         }
     }
 
     public int trail(int x, int y) {
-        return trails[y][x];
+        return trailAt(y * WIDTH + x);
+    }
+
+    public int trailAt(int index) {
+        return grid[index] & 0xFF;
     }
 
     public void trail(int x, int y, int color) {
-        if (trails[y][x] != color) {
-            trails[y][x] = color;
-            for (Player p : players) {
-                p.updatedTrails.set(y * WIDTH + x);
+        int index = y * WIDTH + x;
+        if (trailAt(index) != color) {
+            grid[index] = (short) ((grid[index] & 0xFF00) | color);
+            journal.trail(index);
+        }
+    }
+
+    // cell color in the high byte and trail color in the low one
+    public short gridAt(int index) {
+        return grid[index];
+    }
+
+    // Fixed timestep: the ticks missed by a late run are simulated back to back and only the last of them is sent,
+    // after a longer stall the clock skips the rest instead of bunching them
+    private void runTicks() {
+        long start = System.nanoTime();
+        IOServer.METRICS.lag.record(start - nextTickNanos);
+        try {
+            long due = (start - nextTickNanos) / IOServer.TICK_NANOS + 1;
+            if (due > IOServer.MAX_CATCH_UP_TICKS) {
+                System.err.println("Arena #" + id + " skipped " + (due - IOServer.MAX_CATCH_UP_TICKS) + " ticks");
+                nextTickNanos += (due - IOServer.MAX_CATCH_UP_TICKS) * IOServer.TICK_NANOS;
+                due = IOServer.MAX_CATCH_UP_TICKS;
+            }
+            for (long i = 1; i <= due; i++) {
+                sendClock += IOServer.SEND_RATE;
+                boolean send = sendClock >= IOServer.TICK_RATE && i == due;
+                if (send) {
+                    sendClock %= IOServer.TICK_RATE; // frames missed while catching up are not made up
+                }
+                tick(send);
+                nextTickNanos += IOServer.TICK_NANOS;
+            }
+        } catch (Throwable exc) {
+            System.err.println("Unrecoverable exception occurred in arena #" + id);
+            exc.printStackTrace();
+            return;
+        } finally {
+            long diff = System.nanoTime() - start;
+            if (diff > IOServer.TICK_NANOS / 2) {
+                System.err.println("Arena #" + id + " tick took more than half of the tick period: " + diff + "ns");
             }
         }
+        executor.schedule(this::runTicks, nextTickNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
     }
 
-    public void tick() {
-        List<Player> deadPlayers = new ArrayList<>(players.size());
+    public void tick(boolean send) {
+        long start = System.nanoTime();
+        tickTime = System.currentTimeMillis();
+        List<Player> closedPlayers = new ArrayList<>(players.size());
         for (Player player : players) {
             if (!player.isMoving()) {
                 continue;
@@ -101,23 +271,73 @@ public final class Arena {
 
             player.tick();
             if (player.dead) {
-                deadPlayers.add(player);
+                closedPlayers.add(player);
                 continue;
             }
 
-            for (Player p : players) {
-                p.updatedPlayers.add(player);
-            }
-            if (!player.writing) {
-                server.gameProtocol.write(player.ctx);
-            }
+            player.updatedTick = tick;
+            updateRegion(player);
+        }
+
+        long moved = System.nanoTime();
+        if (send) {
+            send(closedPlayers);
         }
-        for (Player player : deadPlayers) {
+        diffs.clear();
+        Arrays.fill(regionSnapshots, null);
+        journal.begin(++tick);
+        for (Player player : closedPlayers) {
             try {
                 player.ctx.close();
             } catch (IOException e) {
                 e.printStackTrace(); // TODO logging
             }
         }
+
+        Metrics metrics = IOServer.METRICS;
+        metrics.tick.record(System.nanoTime() - start);
+        metrics.movement.record(moved - start - fillNanos);
+        metrics.fill.record(fillNanos);
+        if (send) {
+            metrics.journal.record(journalNanos);
+            metrics.encode.record(encodeNanos);
+            metrics.write.record(writeNanos - encodeNanos);
+        }
+        fillNanos = encodeNanos = journalNanos = writeNanos = 0;
+    }
+
+    // A player still writing a previous frame skips this one and later gets all the changes since its last frame,
+    // diffs are encoded once per distinct last frame, so up to date players share the same one
+    private void send(List<Player> closedPlayers) {
+        for (Player player : players) {
+            ChannelContext ctx = player.ctx;
+            if (player.dead || !player.isMoving()) {
+                continue;
+            }
+            long outstanding = ctx.outstandingBytes();
+            IOServer.METRICS.queue.record(outstanding);
+            if (player.writing) {
+                IOServer.WRITES.maxOutstanding.accumulate(outstanding);
+                // At most one frame is outstanding, so a slow client shows in the time it takes and not in bytes
+                if (tick - ctx.ackTick > IOServer.DROP_TICKS) {
+                    IOServer.WRITES.dropped.increment();
+                    closedPlayers.add(player);
+                } else {
+                    IOServer.WRITES.coalesced.increment();
+                }
+                continue;
+            }
+            long start = System.nanoTime();
+            GameProtocol.Diff diff = diffs.get(ctx.ackTick);
+            if (diff == null) {
+                diff = server.gameProtocol.diff(this, ctx.ackTick);
+                diffs.put(ctx.ackTick, diff);
+            }
+            long collected = System.nanoTime();
+            journalNanos += collected - start;
+            ctx.ackTick = tick;
+            server.gameProtocol.write(ctx, this, diff);
+            writeNanos += System.nanoTime() - collected;
+        }
     }
 }
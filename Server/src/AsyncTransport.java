@@ -0,0 +1,79 @@
+package io.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Asynchronous channels, the protocols run as chains of operations completed on the I/O pool
+public final class AsyncTransport implements Transport, CompletionHandler<AsynchronousSocketChannel, Void> {
+    private final IOServer server;
+    private final AsynchronousServerSocketChannel channel;
+
+    public AsyncTransport(IOServer server) throws IOException {
+        this.server = server;
+
+        // Socket completions run on their own pool and never share a thread with the simulation
+        AtomicInteger ioThreadsCount = new AtomicInteger();
+        AsynchronousChannelGroup group = AsynchronousChannelGroup.withFixedThreadPool(IOServer.IO_THREADS,
+                r -> IOServer.newThread(r, "AIO Thread #" + ioThreadsCount.getAndIncrement()));
+        channel = AsynchronousServerSocketChannel.open(group);
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+    }
+
+    @Override
+    public void start(InetSocketAddress address) throws IOException {
+        channel.bind(address, IOServer.BACKLOG);
+        channel.accept(null, this);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public void completed(AsynchronousSocketChannel result, Void attachment) {
+        server.handshakeProtocol.handshakeOp1.execute(new ChannelContext(new AsyncConnection(result)));
+        channel.accept(null, this);
+    }
+
+    @Override
+    public void failed(Throwable exc, Void attachment) {
+        try {
+            close();
+        } catch (IOException e) {
+            exc.addSuppressed(e);
+        }
+        exc.printStackTrace(); // TODO logging
+    }
+
+    private static final class AsyncConnection implements Connection {
+        private final AsynchronousSocketChannel channel;
+
+        private AsyncConnection(AsynchronousSocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void read(ByteBuffer buffer, ChannelContext ctx, CompletionHandler<Integer, ChannelContext> handler) {
+            channel.read(buffer, 5L, TimeUnit.SECONDS, ctx, handler);
+        }
+
+        @Override
+        public void write(ByteBuffer[] buffers, int offset, int length, ChannelContext ctx, CompletionHandler<Long, ChannelContext> handler) {
+            channel.write(buffers, offset, length, 5L, TimeUnit.SECONDS, ctx, handler);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package io.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// A socket which also reads and writes on the calling thread, for the transports with a thread per connection
+public interface BlockingConnection extends Connection {
+    int read(ByteBuffer buffer) throws IOException;
+
+    long write(ByteBuffer[] buffers, int offset, int length) throws IOException;
+}
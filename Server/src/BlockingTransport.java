@@ -0,0 +1,202 @@
+package io.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Blocking channels with a virtual thread per connection, the handshake and the inputs are read in straight lines
+public final class BlockingTransport implements Transport, Runnable {
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+
+    private final IOServer server;
+    private final ServerSocketChannel channel;
+    // Blocking reads have no deadline of their own, so the connections waiting too long are closed from here
+    private final Set<SocketConnection> connections = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService timeouts =
+            Executors.newSingleThreadScheduledExecutor(r -> IOServer.newThread(r, "Timeout Thread"));
+
+    public BlockingTransport(IOServer server) throws IOException {
+        this.server = server;
+        channel = ServerSocketChannel.open();
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+    }
+
+    @Override
+    public void start(InetSocketAddress address) throws IOException {
+        channel.bind(address, IOServer.BACKLOG);
+        IOServer.newThread(this, "Accept Thread").start();
+        timeouts.scheduleAtFixedRate(this::checkTimeouts, 1L, 1L, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        timeouts.shutdown();
+    }
+
+    private void checkTimeouts() {
+        long now = System.nanoTime();
+        for (SocketConnection connection : connections) {
+            connection.checkTimeout(now);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (channel.isOpen()) {
+                SocketChannel socket = channel.accept();
+                Util.startVirtualThread(() -> serve(socket));
+            }
+        } catch (IOException e) {
+            if (channel.isOpen()) {
+                e.printStackTrace(); // TODO logging
+            }
+        }
+    }
+
+    private void serve(SocketChannel socket) {
+        SocketConnection connection = new SocketConnection(socket);
+        connections.add(connection);
+        ChannelContext ctx = new ChannelContext(connection);
+        try {
+            if (server.handshakeProtocol.handshake(ctx)) {
+                server.gameProtocol.readInputs(ctx);
+            }
+        } catch (Throwable exc) {
+            ctx.fail(exc);
+        }
+    }
+
+    // Reads on the connection thread, frames of the arena thread are handed over to a writer thread
+    private final class SocketConnection implements BlockingConnection {
+        private final SocketChannel channel;
+        private volatile long readDeadline = 0; // while a read blocks
+        private volatile boolean timedOut = false;
+        private volatile Thread writer;
+        private volatile ByteBuffer[] buffers; // set last, publishes the rest of the write
+        private int offset, length;
+        private ChannelContext ctx;
+        private CompletionHandler<Long, ChannelContext> handler;
+
+        private SocketConnection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void read(ByteBuffer buffer, ChannelContext ctx, CompletionHandler<Integer, ChannelContext> handler) {
+            int result;
+            try {
+                result = read(buffer);
+            } catch (Throwable exc) {
+                handler.failed(exc, ctx);
+                return;
+            }
+            handler.completed(result, ctx);
+        }
+
+        // Only one write is in flight at a time, the next one is requested by its handler
+        @Override
+        public void write(ByteBuffer[] buffers, int offset, int length, ChannelContext ctx, CompletionHandler<Long, ChannelContext> handler) {
+            this.offset = offset;
+            this.length = length;
+            this.ctx = ctx;
+            this.handler = handler;
+            this.buffers = buffers;
+            if (writer == null) {
+                synchronized (this) {
+                    if (writer == null) {
+                        writer = Util.startVirtualThread(this::writeLoop);
+                        return;
+                    }
+                }
+            }
+            LockSupport.unpark(writer);
+        }
+
+        private void writeLoop() {
+            while (channel.isOpen()) {
+                ByteBuffer[] buffers = this.buffers;
+                if (buffers == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                this.buffers = null;
+
+                ChannelContext ctx = this.ctx;
+                CompletionHandler<Long, ChannelContext> handler = this.handler;
+                long result;
+                try {
+                    result = write(buffers, offset, length);
+                } catch (Throwable exc) {
+                    handler.failed(exc, ctx);
+                    continue;
+                }
+                handler.completed(result, ctx);
+            }
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            readDeadline = System.nanoTime() + TIMEOUT;
+            try {
+                return channel.read(buffer);
+            } catch (AsynchronousCloseException e) {
+                if (timedOut) {
+                    throw new InterruptedByTimeoutException();
+                }
+                throw e;
+            } finally {
+                readDeadline = 0;
+            }
+        }
+
+        // Closing the channel is the only way to wake up a read blocked on it
+        private void checkTimeout(long now) {
+            long deadline = readDeadline;
+            if (deadline != 0 && now - deadline > 0) {
+                timedOut = true;
+                try {
+                    close();
+                } catch (IOException e) {
+                    e.printStackTrace(); // TODO logging
+                }
+            }
+        }
+
+        @Override
+        public long write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+            long result = 0;
+            for (int i = offset; i < offset + length; ) {
+                if (!buffers[i].hasRemaining()) {
+                    i++;
+                    continue;
+                }
+                result += channel.write(buffers, i, offset + length - i);
+            }
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            connections.remove(this);
+            channel.close();
+            Thread writer = this.writer;
+            if (writer != null) {
+                LockSupport.unpark(writer);
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package io.server;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Direct buffers of a few size classes, cut out of large slabs and reused instead of being freed,
+// so a connection holds only as much native memory as it currently needs
+public final class BufferPool {
+    public static final int MIN_SIZE = 256;
+    public static final int MAX_SIZE = 65536;
+    private static final int SLAB_SIZE = 1 << 20;
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+
+    private final SizeClass[] classes = new SizeClass[CLASSES];
+
+    public BufferPool() {
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(MIN_SIZE << i);
+        }
+    }
+
+    // Returns a cleared buffer with at least the given capacity
+    public ByteBuffer lease(int capacity) {
+        return sizeClass(capacity).lease();
+    }
+
+    public void release(ByteBuffer buffer) {
+        SizeClass sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass.size != buffer.capacity()) {
+            throw new IllegalArgumentException("Buffer is not from the pool: " + buffer.capacity());
+        }
+        sizeClass.release(buffer);
+    }
+
+    public long leasedBytes() {
+        long bytes = 0;
+        for (SizeClass sizeClass : classes) {
+            bytes += (long) sizeClass.leased.get() * sizeClass.size;
+        }
+        return bytes;
+    }
+
+    public long allocatedBytes() {
+        long bytes = 0;
+        for (SizeClass sizeClass : classes) {
+            bytes += (long) sizeClass.allocated.get() * sizeClass.size;
+        }
+        return bytes;
+    }
+
+    // Leased of allocated buffers per size class
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("Buffers: ");
+        builder.append(leasedBytes() >> 10).append(" of ").append(allocatedBytes() >> 10).append(" KB leased");
+        for (SizeClass sizeClass : classes) {
+            if (sizeClass.allocated.get() > 0) {
+                builder.append(", ").append(sizeClass.size >> 8 < 4 ? sizeClass.size + " B" : (sizeClass.size >> 10) + " KB")
+                        .append(' ').append(sizeClass.leased.get()).append('/').append(sizeClass.allocated.get());
+            }
+        }
+        return builder.toString();
+    }
+
+    private SizeClass sizeClass(int capacity) {
+        if (capacity > MAX_SIZE) {
+            throw new IllegalArgumentException("Buffer size is larger than the largest pooled size: " + capacity);
+        }
+        int size = Math.max(Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1, MIN_SIZE);
+        return classes[Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(MIN_SIZE)];
+    }
+
+    private static final class SizeClass {
+        private final int size;
+        private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger leased = new AtomicInteger();
+        private final AtomicInteger allocated = new AtomicInteger();
+
+        private SizeClass(int size) {
+            this.size = size;
+        }
+
+        private ByteBuffer lease() {
+            ByteBuffer buffer;
+            while ((buffer = free.poll()) == null) {
+                allocateSlab();
+            }
+            leased.incrementAndGet();
+            return buffer.clear();
+        }
+
+        private void release(ByteBuffer buffer) {
+            leased.decrementAndGet();
+            free.add(buffer);
+        }
+
+        // Slabs are never freed, the pool keeps the peak number of buffers
+        private synchronized void allocateSlab() {
+            if (!free.isEmpty()) {
+                return;
+            }
+            ByteBuffer slab = ByteBuffer.allocateDirect(Math.max(SLAB_SIZE, size));
+            for (int offset = 0; offset < slab.capacity(); offset += size) {
+                free.add(slab.limit(offset + size).position(offset).slice());
+            }
+            allocated.addAndGet(slab.capacity() / size);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package io.server;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+// Changed cells of a region, encoded in whichever of the three forms is the smallest:
+// a bitmap of changed cells for scattered changes over the whole region,
+// a list of index deltas for a few changes, runs of equal values for captures
+public final class CellsEncoding {
+    public static final int BITMAP = 0;
+    public static final int SPARSE = 1;
+    public static final int RUNS = 2;
+
+    private CellsEncoding() {
+    }
+
+    // values are indexed by the cell index in the region
+    public static int choose(BitSet changed, byte[] values) {
+        int bitmap = size(BITMAP, changed, values);
+        int sparse = size(SPARSE, changed, values);
+        int runs = size(RUNS, changed, values);
+        if (runs < sparse && runs < bitmap) {
+            return RUNS;
+        }
+        return sparse < bitmap ? SPARSE : BITMAP;
+    }
+
+    public static int size(int encoding, BitSet changed, byte[] values) {
+        switch (encoding) {
+            case BITMAP:
+                return Byte.BYTES + Short.BYTES + (changed.length() + Byte.SIZE - 1) / Byte.SIZE + changed.cardinality();
+            case SPARSE: {
+                int size = Byte.BYTES + Util.varIntSize(changed.cardinality());
+                int previous = -1;
+                for (int i = changed.nextSetBit(0); i != -1; i = changed.nextSetBit(i + 1)) {
+                    size += Util.varIntSize(i - previous - 1) + Byte.BYTES;
+                    previous = i;
+                }
+                return size;
+            }
+            case RUNS: {
+                int count = 0;
+                int size = 0;
+                int end = 0;
+                for (int start = changed.nextSetBit(0); start != -1; start = changed.nextSetBit(end)) {
+                    int length = runLength(changed, values, start);
+                    size += Util.varIntSize(start - end) + Util.varIntSize(length) + Byte.BYTES;
+                    end = start + length;
+                    count++;
+                }
+                return Byte.BYTES + Util.varIntSize(count) + size;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown encoding: " + encoding);
+        }
+    }
+
+    public static void encode(ByteBuffer buffer, int encoding, BitSet changed, byte[] values) {
+        buffer.put((byte) encoding);
+        switch (encoding) {
+            case BITMAP: {
+                byte[] mask = changed.toByteArray();
+                buffer.putShort((short) mask.length).put(mask);
+                for (int i = changed.nextSetBit(0); i != -1; i = changed.nextSetBit(i + 1)) {
+                    buffer.put(values[i]);
+                }
+                break;
+            }
+            case SPARSE: {
+                Util.putVarInt(buffer, changed.cardinality());
+                int previous = -1;
+                for (int i = changed.nextSetBit(0); i != -1; i = changed.nextSetBit(i + 1)) {
+                    Util.putVarInt(buffer, i - previous - 1);
+                    buffer.put(values[i]);
+                    previous = i;
+                }
+                break;
+            }
+            case RUNS: {
+                int count = 0;
+                int end = 0;
+                for (int start = changed.nextSetBit(0); start != -1; start = changed.nextSetBit(end)) {
+                    end = start + runLength(changed, values, start);
+                    count++;
+                }
+                Util.putVarInt(buffer, count);
+                end = 0;
+                for (int start = changed.nextSetBit(0); start != -1; start = changed.nextSetBit(end)) {
+                    int length = runLength(changed, values, start);
+                    Util.putVarInt(buffer, start - end);
+                    Util.putVarInt(buffer, length);
+                    buffer.put(values[start]);
+                    end = start + length;
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown encoding: " + encoding);
+        }
+    }
+
+    // consecutive changed cells with the same value
+    private static int runLength(BitSet changed, byte[] values, int start) {
+        int end = start + 1;
+        while (changed.get(end) && values[end] == values[start]) {
+            end++;
+        }
+        return end - start;
+    }
+}
@@ -0,0 +1,79 @@
+package io.server;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+// Arena changes of the last ticks, so a diff since any recent tick can be coalesced on demand
+public final class ChangeJournal {
+    private final int capacity;
+    private final IntList[] cells;
+    private final IntList[] trails;
+    private final int[] cellTicks;
+    private final int[] trailTicks;
+    private int tick = 0;
+
+    public ChangeJournal(int capacity, int size) {
+        this.capacity = capacity;
+        cells = new IntList[capacity];
+        trails = new IntList[capacity];
+        for (int i = 0; i < capacity; i++) {
+            cells[i] = new IntList(16);
+            trails[i] = new IntList(16);
+        }
+        cellTicks = new int[size];
+        trailTicks = new int[size];
+        Arrays.fill(cellTicks, -1);
+        Arrays.fill(trailTicks, -1);
+    }
+
+    // all changes recorded from now on belong to the tick
+    public void begin(int tick) {
+        this.tick = tick;
+        int slot = slot(tick);
+        cells[slot].clear();
+        trails[slot].clear();
+    }
+
+    public void cell(int index) {
+        if (cellTicks[index] != tick) {
+            cellTicks[index] = tick;
+            cells[slot(tick)].add(index);
+        }
+    }
+
+    public void trail(int index) {
+        if (trailTicks[index] != tick) {
+            trailTicks[index] = tick;
+            trails[slot(tick)].add(index);
+        }
+    }
+
+    // whether every tick after the given one is still in the journal
+    public boolean covers(int since) {
+        return since >= tick - capacity;
+    }
+
+    public void cells(int since, BitSet result) {
+        collect(cells, since, result);
+    }
+
+    public void trails(int since, BitSet result) {
+        collect(trails, since, result);
+    }
+
+    private void collect(IntList[] journal, int since, BitSet result) {
+        if (!covers(since)) {
+            throw new IllegalArgumentException("Tick " + since + " is not in the journal anymore, current tick is " + tick);
+        }
+        for (int t = since + 1; t <= tick; t++) {
+            IntList changes = journal[slot(t)];
+            for (int i = 0; i < changes.size(); i++) {
+                result.set(changes.get(i));
+            }
+        }
+    }
+
+    private int slot(int tick) {
+        return Math.floorMod(tick, capacity);
+    }
+}
@@ -3,47 +3,255 @@ package io.server;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.IOException;
-import java.lang.invoke.MethodHandle;
-import java.lang.invoke.MethodHandles;
-import java.lang.invoke.MethodHandles.Lookup;
-import java.lang.invoke.MethodType;
-import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousChannel;
-import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.server.ChannelContext.ReadLengthOp.Callback;
-import sun.misc.Unsafe;
 
 public final class ChannelContext implements Closeable {
-    private static final int BUFFER_SIZE = 32768;
-    private static final Unsafe UNSAFE;
-    private static final Lookup LOOKUP;
-    private static final MethodHandle MH_INVOKER_INVOKE;
-
-    private final AsynchronousSocketChannel channel;
-    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
-    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private static final int READ_BUFFER_SIZE = BufferPool.MIN_SIZE;
+    private static final int SEGMENT_SIZE = 4096;
+    private static final int MAX_GATHERED = 64;
+    private static final int MAX_SYNC_DEPTH = 8;
+    private static final ThreadLocal<Trampoline> TRAMPOLINE = ThreadLocal.withInitial(Trampoline::new);
+
+    private final Connection connection;
+    private final BlockingConnection blocking; // the same connection when it blocks, null otherwise
+    // Pooled buffers, the read one grows when a message does not fit, written data spills into
+    // a chain of segments which are leased only until they are written
+    private ByteBuffer readBuffer;
+    private ByteBuffer writeBuffer; // the last segment
+    private ByteBuffer[] segments = new ByteBuffer[4];
+    private int segmentsOffset = 0, segmentsCount = 0;
+    private long segmentsWritten = 0; // bytes in the segments before the last one
+    private final AtomicInteger pending = new AtomicInteger(); // socket operations which still use the buffers
+    private final AtomicBoolean released = new AtomicBoolean();
+    private volatile boolean closed = false;
 
     private int readPosition = 0, readRequested = 0, readLength = 0;
     private int writeStartPos = -1;
+    private ByteBuffer writeStartSegment;
+    private long writeStart;
+    private final Queue<ByteBuffer> queued = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer[] flushing = new ByteBuffer[MAX_GATHERED];
+    private int flushingOffset = 0, flushingLength = 0;
+    private final AtomicLong outstanding = new AtomicLong(); // queued bytes not written yet
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong stallNanos = new AtomicLong(); // spent by the flushes waiting for the socket
+    private long flushStart = 0;
+    private Continuation continuation; // deferred by the trampoline
     public Player player;
+    public int ackTick = 0; // the last arena tick which changes were sent
+    public final BitSet regions = new BitSet(); // arena regions which are up to date as of ackTick
+    public final BitSet knownColors = new BitSet(256); // of the players the client has as of ackTick, with its own
 
-    public ChannelContext(AsynchronousSocketChannel channel) {
-        this.channel = channel;
-        readBuffer.limit(0);
+    public ChannelContext(Connection connection) {
+        this.connection = connection;
+        blocking = connection instanceof BlockingConnection ? (BlockingConnection) connection : null;
+        readBuffer = IOServer.BUFFERS.lease(READ_BUFFER_SIZE).limit(0);
     }
 
     @Override
     public void close() throws IOException {
-        channel.close();
-        UNSAFE.invokeCleaner(readBuffer);
-        UNSAFE.invokeCleaner(writeBuffer);
+        closed = true;
+        connection.close();
+        if (pending.get() == 0) {
+            releaseBuffers();
+        }
         if (player != null) {
-            player.arena.removePlayer(player);
+            Player player = this.player;
+            player.arena.execute(() -> player.arena.removePlayer(player));
+        }
+    }
+
+    public void fail(Throwable exc) {
+        try {
+            close();
+        } catch (Throwable e) {
+            exc.addSuppressed(e);
+        }
+        exc.printStackTrace(); // TODO logging
+    }
+
+    // A socket operation may still fill or drain a buffer after the channel is closed,
+    // so the buffers are returned by the last one to finish
+    private void releaseBuffers() {
+        if (!released.compareAndSet(false, true)) {
+            return;
+        }
+        IOServer.BUFFERS.release(readBuffer);
+        releaseSegments();
+    }
+
+    private void releaseSegments() {
+        for (int i = 0; i < segmentsCount; i++) {
+            IOServer.BUFFERS.release(segments[i]);
+            segments[i] = null;
+        }
+        segmentsOffset = 0;
+        segmentsCount = 0;
+        segmentsWritten = 0;
+        writeBuffer = null;
+    }
+
+    private void read(ReadOp op) {
+        pending.incrementAndGet();
+        try {
+            connection.read(readBuffer, this, op);
+        } catch (RuntimeException e) {
+            done();
+            throw e;
+        }
+    }
+
+    private void write(WriteOp op) {
+        pending.incrementAndGet();
+        try {
+            connection.write(segments, segmentsOffset, segmentsCount - segmentsOffset, this, op);
+        } catch (RuntimeException e) {
+            done();
+            throw e;
+        }
+    }
+
+    private void done() {
+        if (pending.decrementAndGet() == 0 && closed) {
+            releaseBuffers();
+        }
+    }
+
+    // Makes room for the requested bytes after the unread ones, returns true when they are already buffered
+    private boolean prepareRead(int minimal) {
+        if (readBuffer.remaining() >= minimal) {
+            readPosition = readBuffer.position();
+            readRequested = 0;
+            readBuffer.position(readBuffer.limit());
+            return true;
         }
+
+        if (readBuffer.capacity() - readBuffer.position() >= minimal) {
+            readPosition = readBuffer.position();
+            readBuffer.position(readBuffer.limit()).limit(readBuffer.capacity());
+        } else if (minimal <= readBuffer.capacity()) {
+            readBuffer.compact();
+            readPosition = 0;
+        } else if (minimal <= BufferPool.MAX_SIZE) {
+            readPosition = readBuffer.position();
+            growReadBuffer(minimal);
+            readBuffer.position(readBuffer.limit()).limit(readBuffer.capacity());
+        } else {
+            throw new IllegalArgumentException("Data size is larger than buffer size: " + minimal);
+        }
+        readRequested = minimal;
+        return false;
+    }
+
+    private int readMissing() {
+        return readRequested - (readBuffer.position() - readPosition);
+    }
+
+    private void finishRead() {
+        readBuffer.limit(readBuffer.position()).position(readPosition);
+        readPosition = 0;
+        readRequested = 0;
+    }
+
+    public boolean isBlocking() {
+        return blocking != null;
+    }
+
+    private void checkBlocking() {
+        if (blocking == null) {
+            throw new IllegalStateException("Blocking operations are not supported by " + connection.getClass().getSimpleName());
+        }
+    }
+
+    // Blocking transports: waits on the calling thread until the bytes are buffered
+    public void await(int minimal) throws IOException {
+        checkBlocking();
+        if (!prepareRead(minimal)) {
+            pending.incrementAndGet();
+            try {
+                while (readMissing() > 0) {
+                    int read = blocking.read(readBuffer);
+                    if (read < 0) {
+                        throw new EOFException("Still need " + readMissing() + " bytes to read");
+                    }
+                    bytesIn.addAndGet(read);
+                }
+            } finally {
+                done();
+            }
+        }
+        finishRead();
+    }
+
+    // Blocking transports: writes the written data and then the queued buffers on the calling thread
+    public void flush() throws IOException {
+        checkBlocking();
+        pending.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            if (writeBuffer != null) {
+                for (int i = 0; i < segmentsCount; i++) {
+                    segments[i].flip();
+                }
+                bytesOut.addAndGet(blocking.write(segments, 0, segmentsCount));
+                releaseSegments();
+            }
+            while (!queued.isEmpty()) {
+                int length = 0;
+                for (ByteBuffer buffer; length < MAX_GATHERED && (buffer = queued.poll()) != null; ) {
+                    flushing[length++] = buffer;
+                }
+                long written = blocking.write(flushing, 0, length);
+                outstanding.addAndGet(-written);
+                bytesOut.addAndGet(written);
+                Arrays.fill(flushing, 0, length, null);
+            }
+        } finally {
+            flushed(start);
+            done();
+        }
+    }
+
+    private void flushed(long start) {
+        long stall = System.nanoTime() - start;
+        stallNanos.addAndGet(stall);
+        IOServer.METRICS.flush.record(stall);
+    }
+
+    // Keeps unread bytes and moves them into a larger buffer
+    private void growReadBuffer(int capacity) {
+        ByteBuffer buffer = IOServer.BUFFERS.lease(capacity);
+        buffer.put(readBuffer.position(readPosition)).flip();
+        IOServer.BUFFERS.release(readBuffer);
+        readBuffer = buffer;
+        readPosition = 0;
+    }
+
+    // Returns the last segment, a new one when the value does not fit, so a message is not limited by a buffer size
+    private ByteBuffer writable(int length) {
+        if (writeBuffer == null || writeBuffer.remaining() < length) {
+            if (writeBuffer != null) {
+                segmentsWritten += writeBuffer.position();
+            }
+            if (segmentsCount == segments.length) {
+                segments = Arrays.copyOf(segments, segmentsCount * 2);
+            }
+            writeBuffer = IOServer.BUFFERS.lease(Math.max(length, SEGMENT_SIZE));
+            segments[segmentsCount++] = writeBuffer;
+        }
+        return writeBuffer;
     }
 
     public int readInt() {
@@ -104,6 +312,18 @@ public final class ChannelContext implements Closeable {
         return Short.toUnsignedInt(readShort());
     }
 
+    public int readVarInt() {
+        int value = 0;
+        for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+            byte b = readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("VarInt is too big");
+    }
+
     public String readUTF16String(int length) { // length is the symbols count
         char[] string = new char[length];
         for (int i = 0; i < length; i++) {
@@ -116,24 +336,54 @@ public final class ChannelContext implements Closeable {
         return readUTF16String(readUnsignedShort());
     }
 
+    // Queues an already encoded buffer, which may be shared between contexts, for the next FlushOp
+    public void queue(ByteBuffer buffer) {
+        outstanding.addAndGet(buffer.remaining());
+        queued.add(buffer);
+    }
+
+    public long outstandingBytes() {
+        return outstanding.get();
+    }
+
+    public int queuedBuffers() {
+        return queued.size();
+    }
+
+    public long bytesIn() {
+        return bytesIn.get();
+    }
+
+    public long bytesOut() {
+        return bytesOut.get();
+    }
+
+    public long stallNanos() {
+        return stallNanos.get();
+    }
+
     public void writeByte(byte b) {
-        writeBuffer.put(b);
+        writable(Byte.BYTES).put(b);
     }
 
     public void writeChar(char ch) {
-        writeBuffer.putChar(ch);
+        writable(Character.BYTES).putChar(ch);
     }
 
     public void writeInt(int i) {
-        writeBuffer.putInt(i);
+        writable(Integer.BYTES).putInt(i);
     }
 
     public void writeShort(short s) {
-        writeBuffer.putShort(s);
+        writable(Short.BYTES).putShort(s);
     }
 
     public void writeLong(long l) {
-        writeBuffer.putLong(l);
+        writable(Long.BYTES).putLong(l);
+    }
+
+    public void writeVarInt(int i) {
+        Util.putVarInt(writable(5), i);
     }
 
     public void writeBoolean(boolean b) {
@@ -141,15 +391,20 @@ public final class ChannelContext implements Closeable {
     }
 
     public void writeFloat(float f) {
-        writeBuffer.putFloat(f);
+        writable(Float.BYTES).putFloat(f);
     }
 
     public void writeDouble(double d) {
-        writeBuffer.putDouble(d);
+        writable(Double.BYTES).putDouble(d);
     }
 
     public void writeBytes(byte[] bytes) {
-        writeBuffer.put(bytes);
+        for (int offset = 0; offset < bytes.length; ) {
+            ByteBuffer buffer = writable(Byte.BYTES);
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
     }
 
     public void writeBytesWithLength(byte[] bytes) {
@@ -172,8 +427,10 @@ public final class ChannelContext implements Closeable {
         if (writeStartPos != -1) {
             throw new IllegalStateException("Calling startCountLength() more than one time in a row");
         }
-        writeStartPos = writeBuffer.position();
-        writeBuffer.position(writeStartPos + Short.BYTES);
+        writeStartSegment = writable(Integer.BYTES);
+        writeStartPos = writeStartSegment.position();
+        writeStartSegment.position(writeStartPos + Integer.BYTES);
+        writeStart = segmentsWritten + writeBuffer.position();
     }
 
     // use only after startCountLength
@@ -181,29 +438,54 @@ public final class ChannelContext implements Closeable {
         if (writeStartPos == -1) {
             throw new IllegalStateException("Calling writeLength() is allowed only after calling startCountLength()");
         }
-        int endPos = writeBuffer.position();
-        writeBuffer.position(writeStartPos)
-                .putShort((short) (endPos - writeStartPos - Short.BYTES))
-                .position(endPos);
+        writeStartSegment.putInt(writeStartPos, (int) (segmentsWritten + writeBuffer.position() - writeStart));
+        writeStartSegment = null;
         writeStartPos = -1;
     }
 
-    static {
+    // Completions which are satisfied from the buffers run on the calling thread: directly while the stack is shallow,
+    // deeper ones are deferred to the outermost completion, so pipelined messages are processed in a loop
+    private void resume(Continuation continuation) {
+        Trampoline trampoline = TRAMPOLINE.get();
+        if (trampoline.depth >= MAX_SYNC_DEPTH) {
+            this.continuation = continuation;
+            trampoline.deferred.add(this);
+            return;
+        }
+
+        boolean outermost = trampoline.depth == 0;
+        trampoline.depth++;
         try {
-            UNSAFE = (Unsafe) MethodHandles.privateLookupIn(Unsafe.class, MethodHandles.lookup()).findStaticVarHandle(Unsafe.class, "theUnsafe", Unsafe.class).get();
-            Field implLookupField = MethodHandles.Lookup.class.getDeclaredField("IMPL_LOOKUP");
-            LOOKUP = (MethodHandles.Lookup) UNSAFE.getObject(UNSAFE.staticFieldBase(implLookupField), UNSAFE.staticFieldOffset(implLookupField));
-            MH_INVOKER_INVOKE = LOOKUP.findStatic(Class.forName("sun.nio.ch.Invoker"), "invoke", MethodType.methodType(void.class, AsynchronousChannel.class, CompletionHandler.class, Object.class, Object.class, Throwable.class));
-        } catch (Throwable exc) {
-            throw new InternalError(exc);
+            continuation.resume(this);
+        } finally {
+            trampoline.depth--;
+        }
+        if (!outermost) {
+            return;
+        }
+        for (ChannelContext ctx; (ctx = trampoline.deferred.poll()) != null; ) {
+            Continuation next = ctx.continuation;
+            ctx.continuation = null;
+            trampoline.depth++;
+            try {
+                next.resume(ctx);
+            } finally {
+                trampoline.depth--;
+            }
         }
     }
 
-    private static <V, A> void invoke(AsynchronousChannel channel, CompletionHandler<V, A> handler, A attachment, V value, Throwable exc) throws Throwable {
-        MH_INVOKER_INVOKE.invokeExact(channel, handler, attachment, value, exc);
+    private static final class Trampoline {
+        private int depth = 0;
+        private final ArrayDeque<ChannelContext> deferred = new ArrayDeque<>();
+    }
+
+    @FunctionalInterface
+    interface Continuation {
+        void resume(ChannelContext ctx);
     }
 
-    public static final class ReadOp implements Op, CompletionHandler<Integer, ChannelContext> {
+    public static final class ReadOp implements Op, Continuation, CompletionHandler<Integer, ChannelContext> {
         private final int minimal;
         private final Callback callback;
 
@@ -218,68 +500,61 @@ public final class ChannelContext implements Closeable {
         }
 
         @Override
-        public void completed(Integer result, ChannelContext ctx) {
-            if (result < 0) {
-                failed(new EOFException("Still need " + (ctx.readRequested - ctx.readBuffer.position() - ctx.readPosition) + " bytes to read"), ctx);
-                return;
-            }
-            if (ctx.readBuffer.position() - ctx.readPosition < ctx.readRequested) {
-                ctx.channel.read(ctx.readBuffer, 5L, TimeUnit.SECONDS, ctx, this);
-                return;
-            }
-            ctx.readBuffer.limit(ctx.readBuffer.position()).position(ctx.readPosition);
+        public void resume(ChannelContext ctx) {
+            completed(0, ctx);
+        }
 
-            // Execute callback
-            ctx.readPosition = 0;
-            ctx.readRequested = 0;
+        @Override
+        public void completed(Integer result, ChannelContext ctx) {
             try {
-                callback.call(ctx);
-            } catch (Throwable exc) {
-                failed(exc, ctx);
+                if (result < 0) {
+                    fail(new EOFException("Still need " + ctx.readMissing() + " bytes to read"), ctx);
+                    return;
+                }
+                ctx.bytesIn.addAndGet(result);
+                if (ctx.readMissing() > 0) {
+                    ctx.read(this);
+                    return;
+                }
+
+                // Execute callback
+                ctx.finishRead();
+                try {
+                    callback.call(ctx);
+                } catch (Throwable exc) {
+                    fail(exc, ctx);
+                }
+            } finally {
+                ctx.done();
             }
         }
 
         @Override
         public void failed(Throwable exc, ChannelContext ctx) {
-            ctx.readPosition = 0;
-            ctx.readRequested = 0;
             try {
-                ctx.close();
-            } catch (Throwable e) {
-                exc.addSuppressed(e);
+                fail(exc, ctx);
+            } finally {
+                ctx.done();
             }
-            exc.printStackTrace(); // TODO logging
+        }
+
+        private static void fail(Throwable exc, ChannelContext ctx) {
+            ctx.readPosition = 0;
+            ctx.readRequested = 0;
+            ctx.fail(exc);
         }
 
         public void execute(ChannelContext ctx, int minimal) {
-            minimal = Integer.max(minimal, this.minimal);
-            if (ctx.readBuffer.remaining() >= minimal) {
-                ctx.readPosition = ctx.readBuffer.position();
-                ctx.readRequested = 0;
-                ctx.readBuffer.position(ctx.readBuffer.limit());
-                try {
-                    invoke(ctx.channel, this, ctx, 0, null);
-                } catch (Throwable e) {
-                    e.printStackTrace();
-                }
+            if (ctx.prepareRead(Integer.max(minimal, this.minimal))) {
+                ctx.pending.incrementAndGet();
+                ctx.resume(this);
                 return;
             }
-
-            if (ctx.readBuffer.capacity() - ctx.readBuffer.position() >= minimal) {
-                ctx.readPosition = ctx.readBuffer.position();
-                ctx.readBuffer.position(ctx.readBuffer.limit()).limit(ctx.readBuffer.capacity());
-            } else if (minimal <= ctx.readBuffer.capacity()) {
-                ctx.readBuffer.compact();
-                ctx.readPosition = 0;
-            } else {
-                throw new IllegalArgumentException("Data size is larger than buffer size: " + minimal);
-            }
-            ctx.readRequested = minimal;
-            ctx.channel.read(ctx.readBuffer, 5L, TimeUnit.SECONDS, ctx, this);
+            ctx.read(this);
         }
     }
 
-    public static final class WriteOp implements Op, CompletionHandler<Integer, ChannelContext> {
+    public static final class WriteOp implements Op, Continuation, CompletionHandler<Long, ChannelContext> {
         public static final WriteOp AND_CLOSE = new WriteOp(ChannelContext::close);
         private final Callback callback;
 
@@ -289,32 +564,110 @@ public final class ChannelContext implements Closeable {
 
         @Override
         public void execute(ChannelContext ctx) {
-            ctx.writeBuffer.flip();
-
             // Verify has write buffer
-            if (!ctx.writeBuffer.hasRemaining()) {
+            if (ctx.writeBuffer == null) {
+                ctx.pending.incrementAndGet();
+                ctx.resume(this);
+                return;
+            }
+
+            // Write segments to channel
+            for (int i = 0; i < ctx.segmentsCount; i++) {
+                ctx.segments[i].flip();
+            }
+            ctx.write(this);
+        }
+
+        @Override
+        public void completed(Long result, ChannelContext ctx) {
+            try {
+                ctx.bytesOut.addAndGet(result);
+
+                // Verify is fully written
+                while (ctx.segmentsOffset < ctx.segmentsCount && !ctx.segments[ctx.segmentsOffset].hasRemaining()) {
+                    ctx.segmentsOffset++;
+                }
+                if (ctx.segmentsOffset < ctx.segmentsCount) {
+                    ctx.write(this);
+                    return;
+                }
+
+                // The next message leases new segments
+                ctx.releaseSegments();
+
+                // Execute callback
                 try {
-                    invoke(ctx.channel, this, ctx, 0, null);
+                    callback.call(ctx);
                 } catch (Throwable exc) {
-                    throw new AssertionError("Impossible", exc);
+                    ctx.fail(exc);
                 }
-                return;
+            } finally {
+                ctx.done();
             }
+        }
 
-            // Write buffer to channel
-            ctx.channel.write(ctx.writeBuffer, 5L, TimeUnit.SECONDS, ctx, this);
+        @Override
+        public void failed(Throwable exc, ChannelContext ctx) {
+            try {
+                ctx.fail(exc);
+            } finally {
+                ctx.done();
+            }
         }
 
         @Override
-        public void completed(Integer result, ChannelContext ctx) {
-            // Verify is fully written
-            if (ctx.writeBuffer.hasRemaining()) {
-                ctx.channel.write(ctx.writeBuffer, 5L, TimeUnit.SECONDS, ctx, this);
+        public void resume(ChannelContext ctx) {
+            completed(0L, ctx);
+        }
+
+        public static WriteOp delegate(Op delegate) {
+            return new WriteOp(delegate::execute);
+        }
+    }
+
+    // Writes queued buffers with gathering writes until the queue is empty, independently of the write buffer
+    public static final class FlushOp implements Op, CompletionHandler<Long, ChannelContext> {
+        private final Callback callback;
+
+        public FlushOp(Callback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void execute(ChannelContext ctx) {
+            if (ctx.flushStart == 0) {
+                ctx.flushStart = System.nanoTime();
+            }
+            int length = 0;
+            for (ByteBuffer buffer; length < MAX_GATHERED && (buffer = ctx.queued.poll()) != null; ) {
+                ctx.flushing[length++] = buffer;
+            }
+            ctx.flushingOffset = 0;
+            ctx.flushingLength = length;
+            ctx.connection.write(ctx.flushing, 0, length, ctx, this);
+        }
+
+        @Override
+        public void completed(Long result, ChannelContext ctx) {
+            ctx.outstanding.addAndGet(-result);
+            ctx.bytesOut.addAndGet(result);
+
+            // Skip fully written buffers
+            while (ctx.flushingOffset < ctx.flushingLength && !ctx.flushing[ctx.flushingOffset].hasRemaining()) {
+                ctx.flushing[ctx.flushingOffset++] = null;
+            }
+            if (ctx.flushingOffset < ctx.flushingLength) {
+                ctx.connection.write(ctx.flushing, ctx.flushingOffset, ctx.flushingLength - ctx.flushingOffset, ctx, this);
+                return;
+            }
+            if (!ctx.queued.isEmpty()) {
+                execute(ctx);
                 return;
             }
+            ctx.flushed(ctx.flushStart);
+            ctx.flushStart = 0;
 
             // Execute callback
-            ctx.writeBuffer.clear();
             try {
                 callback.call(ctx);
             } catch (Throwable exc) {
@@ -324,16 +677,11 @@ public final class ChannelContext implements Closeable {
 
         @Override
         public void failed(Throwable exc, ChannelContext ctx) {
-            try {
-                ctx.close();
-            } catch (Throwable e) {
-                exc.addSuppressed(e);
-            }
-            exc.printStackTrace(); // TODO logging
+            ctx.fail(exc);
         }
 
-        public static WriteOp delegate(Op delegate) {
-            return new WriteOp(delegate::execute);
+        public static FlushOp delegate(Op delegate) {
+            return new FlushOp(delegate::execute);
         }
     }
 
@@ -348,7 +696,7 @@ public final class ChannelContext implements Closeable {
         @Override
         public void call(ChannelContext ctx) throws Exception {
             if (ctx.readLength <= 0) {
-                int length = ctx.readUnsignedShort();
+                int length = ctx.readInt();
                 if (length <= 0) {
                     callback.call(ctx, length);
                 } else {
@@ -365,7 +713,7 @@ public final class ChannelContext implements Closeable {
 
         @Override
         public void execute(ChannelContext ctx) {
-            readOp.execute(ctx, Short.BYTES);
+            readOp.execute(ctx, Integer.BYTES);
         }
 
         @FunctionalInterface
@@ -0,0 +1,12 @@
+package io.server;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+
+// A socket as seen by ChannelContext, every transport completes the operations in its own way
+public interface Connection extends Closeable {
+    void read(ByteBuffer buffer, ChannelContext ctx, CompletionHandler<Integer, ChannelContext> handler);
+
+    void write(ByteBuffer[] buffers, int offset, int length, ChannelContext ctx, CompletionHandler<Long, ChannelContext> handler);
+}
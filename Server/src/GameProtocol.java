@@ -1,61 +1,266 @@
 package io.server;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+// A frame is a header with the tick, a membership part (added and removed players) followed by segments of the regions
+// around the receiving player, every part is encoded once and shared between all the players that need it
+// except the membership, which changes when players enter or leave the interest area of the receiving one
 public class GameProtocol {
+    private static final ByteBuffer EMPTY_MEMBERSHIP = ByteBuffer.allocate(2 * Integer.BYTES).asReadOnlyBuffer();
     private final IOServer server;
 
     public GameProtocol(IOServer server) {
         this.server = server;
     }
 
-    public void write(ChannelContext ctx) {
-        ctx.startCountLength();
+    // Collects all the changes made in the arena after the given tick
+    public Diff diff(Arena arena, int since) {
+        BitSet updatedCells = new BitSet(Arena.HEIGHT * Arena.WIDTH);
+        BitSet updatedTrails = new BitSet(Arena.HEIGHT * Arena.WIDTH);
+        // Replaying a long history costs more than the snapshots of the regions
+        boolean resync = arena.currentTick() - since > IOServer.RESYNC_TICKS || !arena.journal.covers(since);
+        if (!resync) {
+            arena.journal.cells(since, updatedCells);
+            arena.journal.trails(since, updatedTrails);
+        } else {
+            // Too far behind, resend every region and every player around
+            since = -1;
+        }
+        return new Diff(since, resync, updatedCells, updatedTrails);
+    }
 
-        ctx.writeInt(ctx.player.addedPlayers.size());
-        for (Player player : ctx.player.addedPlayers) {
-            player.writeUserName(ctx);
-            player.write(ctx);
+    public void write(ChannelContext ctx, Arena arena, Diff diff) {
+        long start = System.nanoTime();
+        Player player = ctx.player;
+        List<ByteBuffer> parts = arena.frameParts;
+        parts.clear();
+        if (diff.resync) {
+            ctx.regions.clear();
         }
-        ctx.player.addedPlayers.clear();
 
-        ctx.writeInt(ctx.player.updatedPlayers.size());
-        for (Player player : ctx.player.updatedPlayers) {
-            player.write(ctx);
+        int radius = IOServer.INTEREST_RADIUS;
+        int minRegionX = Math.max(player.cellX() - radius, 0) / Arena.REGION_SIZE;
+        int maxRegionX = Math.min(player.cellX() + radius, Arena.WIDTH - 1) / Arena.REGION_SIZE;
+        int minRegionY = Math.max(player.cellY() - radius, 0) / Arena.REGION_SIZE;
+        int maxRegionY = Math.min(player.cellY() + radius, Arena.HEIGHT - 1) / Arena.REGION_SIZE;
+
+        // Regions out of the interest area are not updated anymore, they are sent whole when they are back
+        for (int region = ctx.regions.nextSetBit(0); region != -1; region = ctx.regions.nextSetBit(region + 1)) {
+            int regionX = region % Arena.REGIONS_X;
+            int regionY = region / Arena.REGIONS_X;
+            if (regionX < minRegionX || regionX > maxRegionX || regionY < minRegionY || regionY > maxRegionY) {
+                ctx.regions.clear(region);
+            }
         }
-        ctx.player.updatedPlayers.clear();
 
-        // the end
-        byte[] cellsMask = ctx.player.updatedCells.toByteArray();
-        ctx.writeBytesWithLength(cellsMask);
-        int bit = 0;
-        while ((bit = ctx.player.updatedCells.nextSetBit(bit)) != -1) {
-            ctx.writeByte((byte) ctx.player.arena.cell(bit % Arena.WIDTH, bit / Arena.WIDTH));
-            bit++;
+        // The client has only the players in the interest area, the others are removed from it until they are back
+        List<Player> entering = arena.enteringPlayers;
+        BitSet visible = arena.visibleColors;
+        entering.clear();
+        visible.clear();
+        for (int regionY = minRegionY; regionY <= maxRegionY; regionY++) {
+            for (int regionX = minRegionX; regionX <= maxRegionX; regionX++) {
+                for (Player p : arena.playersIn(regionY * Arena.REGIONS_X + regionX)) {
+                    visible.set(p.color);
+                    // a player who took the color over replaces the previous one on the client
+                    if (p != player && (!ctx.knownColors.get(p.color) || p.addedTick > diff.since)) {
+                        entering.add(p);
+                    }
+                }
+            }
+        }
+        int leaving = 0;
+        for (int color = ctx.knownColors.nextSetBit(0); color != -1; color = ctx.knownColors.nextSetBit(color + 1)) {
+            if (!visible.get(color)) {
+                leaving++;
+            }
         }
-        ctx.player.updatedCells.clear();
+        if (entering.isEmpty() && leaving == 0) {
+            parts.add(EMPTY_MEMBERSHIP.duplicate());
+        } else {
+            parts.add(encodeMembership(entering, ctx.knownColors, visible, leaving));
+            for (Player p : entering) {
+                ctx.knownColors.set(p.color);
+            }
+            ctx.knownColors.and(visible);
+        }
+        entering.clear();
 
-        byte[] trailsMask = ctx.player.updatedTrails.toByteArray();
-        ctx.writeBytesWithLength(trailsMask);
-        bit = 0;
-        while ((bit = ctx.player.updatedTrails.nextSetBit(bit)) != -1) {
-            ctx.writeByte((byte) ctx.player.arena.trail(bit % Arena.WIDTH, bit / Arena.WIDTH));
-            bit++;
+        int regionsCount = 0;
+        for (int regionY = minRegionY; regionY <= maxRegionY; regionY++) {
+            for (int regionX = minRegionX; regionX <= maxRegionX; regionX++) {
+                int region = regionY * Arena.REGIONS_X + regionX;
+                ByteBuffer segment;
+                if (ctx.regions.get(region)) {
+                    segment = regionDiff(arena, diff, region);
+                } else {
+                    segment = regionSnapshot(arena, region);
+                    ctx.regions.set(region);
+                }
+                if (segment != null) {
+                    parts.add(segment.duplicate());
+                    regionsCount++;
+                }
+            }
         }
-        ctx.player.updatedTrails.clear();
 
-        ctx.writeInt(ctx.player.removedPlayers.size());
-        for (Player player: ctx.player.removedPlayers) {
-            ctx.writeByte((byte) player.color);
+        arena.encodeNanos += System.nanoTime() - start;
+
+        // The tick and its time let the client interpolate between frames sent several ticks apart,
+        // and the last input applied lets it replay the newer ones on top of the frame
+        int length = Integer.BYTES + Long.BYTES + Integer.BYTES + Short.BYTES;
+        for (ByteBuffer part : parts) {
+            length += part.remaining();
+        }
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + Integer.BYTES + Long.BYTES + Integer.BYTES + Short.BYTES);
+        header.putInt(length);
+        header.putInt(arena.currentTick());
+        header.putLong(arena.tickTime());
+        header.putInt(ctx.player.inputSeq);
+        header.putShort((short) regionsCount);
+        ctx.queue(header.flip());
+        for (ByteBuffer part : parts) {
+            ctx.queue(part);
+        }
+        parts.clear();
+        IOServer.WRITES.sent.increment();
+        IOServer.WRITES.bytes.add(Integer.BYTES + length);
+        if (diff.resync) {
+            IOServer.WRITES.resynced.increment();
         }
-        ctx.player.removedPlayers.clear();
 
-        ctx.writeLength();
-        ctx.player.writing = true;
+        player.writing = true;
         write.execute(ctx);
     }
 
-    public final ChannelContext.WriteOp write = new ChannelContext.WriteOp((ctx) -> ctx.player.writing = false);
-    public final ChannelContext.ReadOp read = new ChannelContext.ReadOp(2 * Short.BYTES + Byte.BYTES, ctx -> {
-        ctx.player.nextDirection(Direction.VALUES[ctx.readUnsignedByte()]);
+    // The added players whole and the colors of the known players which are not visible
+    private static ByteBuffer encodeMembership(List<Player> added, BitSet known, BitSet visible, int removed) {
+        int length = Integer.BYTES + Integer.BYTES + removed;
+        for (Player player : added) {
+            length += player.userNameLength() + Player.BYTES;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(added.size());
+        for (Player player : added) {
+            player.writeUserName(buffer);
+            player.write(buffer);
+        }
+        buffer.putInt(removed);
+        for (int color = known.nextSetBit(0); color != -1; color = known.nextSetBit(color + 1)) {
+            if (!visible.get(color)) {
+                buffer.put((byte) color);
+            }
+        }
+        return buffer.flip().asReadOnlyBuffer();
+    }
+
+    // null when nothing changed in the region
+    private static ByteBuffer regionDiff(Arena arena, Diff diff, int region) {
+        if (!diff.encodedRegions.get(region)) {
+            diff.regions[region] = encodeRegion(arena, region, diff.since, diff.updatedCells, diff.updatedTrails);
+            diff.encodedRegions.set(region);
+        }
+        return diff.regions[region];
+    }
+
+    private static ByteBuffer regionSnapshot(Arena arena, int region) {
+        if (arena.regionSnapshots[region] == null) {
+            arena.regionSnapshots[region] = encodeRegion(arena, region, -1, null, null);
+        }
+        return arena.regionSnapshots[region];
+    }
+
+    // Players and cells of the region changed after the tick, everything without changed cells
+    private static ByteBuffer encodeRegion(Arena arena, int region, int since, BitSet updatedCells, BitSet updatedTrails) {
+        int x0 = (region % Arena.REGIONS_X) * Arena.REGION_SIZE;
+        int y0 = (region / Arena.REGIONS_X) * Arena.REGION_SIZE;
+        int width = Math.min(Arena.REGION_SIZE, Arena.WIDTH - x0);
+        int height = Math.min(Arena.REGION_SIZE, Arena.HEIGHT - y0);
+
+        List<Player> players = new ArrayList<>();
+        for (Player player : arena.playersIn(region)) {
+            // added players are already sent whole
+            if (since == -1 || player.updatedTick > since && player.addedTick <= since) {
+                players.add(player);
+            }
+        }
+        BitSet cells = new BitSet(width * height);
+        BitSet trails = new BitSet(width * height);
+        byte[] cellValues = new byte[width * height];
+        byte[] trailValues = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int index = (y0 + y) * Arena.WIDTH + x0 + x;
+                if (updatedCells == null || updatedCells.get(index)) {
+                    cells.set(y * width + x);
+                    cellValues[y * width + x] = (byte) arena.cellAt(index);
+                }
+                if (updatedTrails == null || updatedTrails.get(index)) {
+                    trails.set(y * width + x);
+                    trailValues[y * width + x] = (byte) arena.trailAt(index);
+                }
+            }
+        }
+        if (players.isEmpty() && cells.isEmpty() && trails.isEmpty()) {
+            return null;
+        }
+
+        int cellsEncoding = CellsEncoding.choose(cells, cellValues);
+        int trailsEncoding = CellsEncoding.choose(trails, trailValues);
+        ByteBuffer buffer = ByteBuffer.allocate(Short.BYTES + Short.BYTES + players.size() * Player.BYTES
+                + CellsEncoding.size(cellsEncoding, cells, cellValues)
+                + CellsEncoding.size(trailsEncoding, trails, trailValues));
+        buffer.putShort((short) region);
+        buffer.putShort((short) players.size());
+        for (Player player : players) {
+            player.write(buffer);
+        }
+        CellsEncoding.encode(buffer, cellsEncoding, cells, cellValues);
+        CellsEncoding.encode(buffer, trailsEncoding, trails, trailValues);
+        return buffer.flip().asReadOnlyBuffer();
+    }
+
+    // The same input loop in a straight line for the blocking transport
+    public void readInputs(ChannelContext ctx) throws IOException {
+        if (!ctx.isBlocking()) {
+            throw new IllegalArgumentException("The input loop in a straight line needs a blocking connection");
+        }
+        Player player = ctx.player;
+        while (true) {
+            ctx.await(Byte.BYTES + Integer.BYTES);
+            Direction direction = Direction.VALUES[ctx.readUnsignedByte()];
+            player.inputs.offer(Player.input(direction, ctx.readInt()));
+        }
+    }
+
+    public final ChannelContext.FlushOp write = new ChannelContext.FlushOp((ctx) -> ctx.player.writing = false);
+    // An input is the direction and its sequence number
+    public final ChannelContext.ReadOp read = new ChannelContext.ReadOp(Byte.BYTES + Integer.BYTES, ctx -> {
+        // runs on an I/O thread, the arena thread applies the input on its next tick
+        Direction direction = Direction.VALUES[ctx.readUnsignedByte()];
+        ctx.player.inputs.offer(Player.input(direction, ctx.readInt()));
         this.read.execute(ctx);
     });
+
+    // Changes since a tick, shared between all the players which got their previous frame at that tick
+    public static final class Diff {
+        public final int since;
+        public final boolean resync;
+        public final BitSet updatedCells;
+        public final BitSet updatedTrails;
+        private final ByteBuffer[] regions = new ByteBuffer[Arena.REGIONS];
+        private final BitSet encodedRegions = new BitSet(Arena.REGIONS);
+
+        public Diff(int since, boolean resync, BitSet updatedCells, BitSet updatedTrails) {
+            this.since = since;
+            this.resync = resync;
+            this.updatedCells = updatedCells;
+            this.updatedTrails = updatedTrails;
+        }
+    }
 }
@@ -2,84 +2,42 @@ package io.server;
 
 import io.server.ChannelContext.ReadLengthOp;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
 
 public final class HandshakeProtocol {
     public static final int SIGNATURE = 0xdf32a68c;
+    private static final int SNAPSHOT_CHUNK_SIZE = 16384;
+    private static final int SNAPSHOT_RUN_MAX_BYTES = 5 + Short.BYTES;
     public final IOServer server;
 
     public final ChannelContext.ReadOp handshakeOp1;
     public final ChannelContext.WriteOp handshakeOp2;
-    public final ChannelContext.WriteOp handshakeOp3;
+    public final ChannelContext.FlushOp handshakeOp3;
 
     public HandshakeProtocol(IOServer server) {
         this.server = server;
 
-        handshakeOp3 = ChannelContext.WriteOp.delegate(new ChannelContext.ReadOp(Byte.BYTES, (ctx) -> {
+        handshakeOp3 = ChannelContext.FlushOp.delegate(new ChannelContext.ReadOp(Byte.BYTES, (ctx) -> {
             ctx.readByte();
-            ctx.player.setMoving();
+            Player player = ctx.player;
+            player.arena.execute(player::setMoving);
             server.gameProtocol.read.execute(ctx);
         }));
         handshakeOp2 = ChannelContext.WriteOp.delegate(new ReadLengthOp((ctx, length) -> {
-            if (length < 3 || length > 33 || (length & 1) == 0) {
-                throw new IllegalArgumentException("Invalid length of color and username");
-            }
-
-            int color = ctx.readUnsignedByte();
-            if (color == 0) {
-                throw new IllegalArgumentException("Invalid color");
-            }
-            String username = ctx.readUTF16String((length - 1) >> 1);
-            if (!isValidUsername(username)) {
-                throw new IllegalArgumentException("Invalid username");
-            }
-
-            Player player = new Player(ctx, server.arena, color, username);
-            switch (server.arena.addPlayer(player)) {
-                case SUCCESS: {
-                    ctx.writeShort((short) 0);
-                    ctx.startCountLength();
-                    ctx.writeByte((byte) Arena.WIDTH);
-                    ctx.writeByte((byte) Arena.HEIGHT);
-                    for (int y = 0; y < Arena.HEIGHT; y++) {
-                        for (int x = 0; x < Arena.WIDTH; x++) {
-                            ctx.writeByte((byte) server.arena.cell(x, y));
-                            ctx.writeByte((byte) server.arena.trail(x, y));
-                        }
-                    }
-
-                    ctx.writeByte((byte) player.cellX());
-                    ctx.writeByte((byte) player.fracX());
-                    ctx.writeByte((byte) player.cellY());
-                    ctx.writeByte((byte) player.fracY());
-                    ctx.writeByte((byte) player.direction());
-
-                    Collection<Player> players = server.arena.players();
-                    ctx.writeInt(players.size() - 1);
-                    for (Player p : players) {
-                        if (p == player) {
-                            continue;
-                        }
-                        p.writeUserName(ctx);
-                        p.write(ctx);
-                    }
-                    ctx.writeLength();
+            checkLength(length);
+            int color = readColor(ctx);
+            String username = readUsername(ctx, length);
 
-                    ctx.player = player;
-                    handshakeOp3.execute(ctx);
-                    break;
-                }
-                case DUPLICATE_USERNAME: {
-                    ctx.writeStringWithLength("Choose another username, please");
-                    ChannelContext.WriteOp.AND_CLOSE.execute(ctx);
-                    break;
+            Arena arena = server.leastLoadedArena();
+            arena.execute(ctx, c -> {
+                if (join(c, arena, color, username)) {
+                    handshakeOp3.execute(c);
+                } else {
+                    ChannelContext.WriteOp.AND_CLOSE.execute(c);
                 }
-                case DUPLICATE_COLOR: {
-                    ctx.writeStringWithLength("Choose another color, please");
-                    ChannelContext.WriteOp.AND_CLOSE.execute(ctx);
-                    break;
-                }
-            }
+            });
         }));
         handshakeOp1 = new ChannelContext.ReadOp(Integer.BYTES, (ctx) -> {
             int signature = ctx.readInt();
@@ -92,6 +50,168 @@ public final class HandshakeProtocol {
         });
     }
 
+    // The same handshake in a straight line for the blocking transport, returns false when the client is turned away
+    public boolean handshake(ChannelContext ctx) throws Exception {
+        if (!ctx.isBlocking()) {
+            throw new IllegalArgumentException("The handshake in a straight line needs a blocking connection");
+        }
+        ctx.await(Integer.BYTES);
+        if (ctx.readInt() != SIGNATURE) {
+            ctx.close();
+            return false;
+        }
+        ctx.writeInt(SIGNATURE);
+        ctx.flush();
+
+        ctx.await(Integer.BYTES);
+        int length = ctx.readInt();
+        checkLength(length);
+        ctx.await(length);
+        int color = readColor(ctx);
+        String username = readUsername(ctx, length);
+
+        Arena arena = server.leastLoadedArena();
+        CompletableFuture<Boolean> joined = new CompletableFuture<>();
+        arena.execute(() -> {
+            try {
+                joined.complete(join(ctx, arena, color, username));
+            } catch (Throwable exc) {
+                joined.completeExceptionally(exc);
+            }
+        });
+        boolean success = joined.get();
+        ctx.flush();
+        if (!success) {
+            ctx.close();
+            return false;
+        }
+
+        ctx.await(Byte.BYTES);
+        ctx.readByte();
+        Player player = ctx.player;
+        arena.execute(player::setMoving);
+        return true;
+    }
+
+    private static void checkLength(int length) {
+        if (length < 3 || length > 33 || (length & 1) == 0) {
+            throw new IllegalArgumentException("Invalid length of color and username");
+        }
+    }
+
+    private static int readColor(ChannelContext ctx) {
+        int color = ctx.readUnsignedByte();
+        if (color == 0) {
+            throw new IllegalArgumentException("Invalid color");
+        }
+        return color;
+    }
+
+    private static String readUsername(ChannelContext ctx, int length) {
+        String username = ctx.readUTF16String((length - 1) >> 1);
+        if (!isValidUsername(username)) {
+            throw new IllegalArgumentException("Invalid username");
+        }
+        return username;
+    }
+
+    // Queues the arena for the player or an error, runs on the arena thread
+    private boolean join(ChannelContext ctx, Arena arena, int color, String username) {
+        Player player = new Player(ctx, arena, color, username);
+        switch (arena.addPlayer(player)) {
+            case SUCCESS: {
+                ctx.player = player;
+                ctx.ackTick = arena.currentTick() - 1;
+                ctx.regions.set(0, Arena.REGIONS);
+                // The client gets every player now, the first frame removes those out of its interest area
+                for (Player p : arena.players()) {
+                    ctx.knownColors.set(p.color);
+                }
+
+                ByteBuffer header = ByteBuffer.allocate(Short.BYTES + Integer.BYTES + 3 * Short.BYTES + 2 * Byte.BYTES);
+                header.putShort((short) 0);
+                header.putInt(3 * Short.BYTES + 2 * Byte.BYTES);
+                header.putShort((short) Arena.WIDTH);
+                header.putShort((short) Arena.HEIGHT);
+                header.put((byte) Arena.REGION_SIZE);
+                header.putShort((short) IOServer.TICK_RATE);
+                header.put((byte) IOServer.PLAYER_STEP); // the client predicts its player with it
+                ctx.queue(header.flip());
+                encodeSnapshot(ctx, arena);
+
+                Collection<Player> players = arena.players();
+                int length = 5 * Byte.BYTES + Integer.BYTES;
+                for (Player p : players) {
+                    if (p != player) {
+                        length += p.userNameLength() + Player.BYTES;
+                    }
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + length);
+                buffer.putInt(length);
+                buffer.put((byte) player.cellX());
+                buffer.put((byte) player.fracX());
+                buffer.put((byte) player.cellY());
+                buffer.put((byte) player.fracY());
+                buffer.put((byte) player.direction());
+                buffer.putInt(players.size() - 1);
+                for (Player p : players) {
+                    if (p == player) {
+                        continue;
+                    }
+                    p.writeUserName(buffer);
+                    p.write(buffer);
+                }
+                ctx.queue(buffer.flip());
+                return true;
+            }
+            case DUPLICATE_USERNAME: {
+                ctx.writeStringWithLength("Choose another username, please");
+                return false;
+            }
+            case DUPLICATE_COLOR: {
+                ctx.writeStringWithLength("Choose another color, please");
+                return false;
+            }
+            default:
+                throw new IllegalStateException("Unknown result of adding a player");
+        }
+    }
+
+    // The grid is sent as runs of equal cells in chunks of whole rows, so the size depends on the territory shapes
+    // and not on the arena area, and a large arena does not need a message larger than a chunk
+    public static void encodeSnapshot(ChannelContext ctx, Arena arena) {
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + 2 * Short.BYTES + SNAPSHOT_CHUNK_SIZE + (Arena.WIDTH + 1) * SNAPSHOT_RUN_MAX_BYTES);
+        for (int y = 0; y < Arena.HEIGHT; ) {
+            int firstRow = y;
+            buffer.clear().position(Integer.BYTES + 2 * Short.BYTES);
+            int run = 0;
+            short value = 0;
+            do {
+                for (int index = y * Arena.WIDTH; index < (y + 1) * Arena.WIDTH; index++) {
+                    short next = arena.gridAt(index);
+                    if (run > 0 && next != value) {
+                        writeRun(buffer, run, value);
+                        run = 0;
+                    }
+                    value = next;
+                    run++;
+                }
+                y++;
+            } while (y < Arena.HEIGHT && buffer.position() < SNAPSHOT_CHUNK_SIZE);
+            writeRun(buffer, run, value);
+
+            buffer.putInt(0, buffer.position() - Integer.BYTES);
+            buffer.putShort(Integer.BYTES, (short) firstRow);
+            buffer.putShort(Integer.BYTES + Short.BYTES, (short) (y - firstRow));
+            ctx.queue(ByteBuffer.allocate(buffer.position()).put(buffer.flip()).flip());
+        }
+    }
+
+    private static void writeRun(ByteBuffer buffer, int run, short value) {
+        Util.putVarInt(buffer, run);
+        buffer.putShort(value);
+    }
+
     public static boolean isValidUsername(String username) { // TODO extend allowed symbols
         for (int i = 0; i < username.length(); i++) {
             char ch = username.charAt(i);
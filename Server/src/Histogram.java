@@ -0,0 +1,96 @@
+package io.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counts of values in log-linear buckets like HdrHistogram: every power of two is split into 16 buckets,
+// so a percentile is within about 6% of the real value and recording takes a few atomic adds without locks
+public final class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9"};
+
+    private final String unit;
+    private final long scale; // units of the recorded values in the printed unit
+    private final AtomicLongArray counts = new AtomicLongArray((Long.SIZE - SUB_BITS) * SUB_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    public Histogram(String unit, long scale) {
+        this.unit = unit;
+        this.scale = scale;
+    }
+
+    public void record(long value) {
+        value = Math.max(value, 0L);
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long count = count();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    // The highest value of the bucket which holds the percentile, the recorded maximum at most
+    public long percentile(double percentile) {
+        long count = count();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max((long) Math.ceil(count * percentile), 1L);
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(lowest(i + 1) - 1, max());
+            }
+        }
+        return max();
+    }
+
+    private static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+    }
+
+    private static long lowest(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        return (long) (index % SUB_COUNT + SUB_COUNT) << (index / SUB_COUNT - 1);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder().append(count()).append(" values");
+        if (count() > 0) {
+            builder.append(", mean ").append(format(mean()));
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                builder.append(", ").append(PERCENTILE_NAMES[i]).append(' ').append(format(percentile(PERCENTILES[i])));
+            }
+            builder.append(", max ").append(format(max()));
+        }
+        return builder.toString();
+    }
+
+    private String format(double value) {
+        return String.format("%.1f %s", value / scale, unit);
+    }
+}
@@ -4,42 +4,111 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
-import java.net.StandardSocketOptions;
-import java.nio.channels.AsynchronousChannelGroup;
-import java.nio.channels.AsynchronousServerSocketChannel;
-import java.nio.channels.AsynchronousSocketChannel;
-import java.nio.channels.CompletionHandler;
 import java.util.Random;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
-public final class IOServer implements Closeable, Runnable, CompletionHandler<AsynchronousSocketChannel, Void> {
-    public static final long TICK_RATE = 20L;
+public final class IOServer implements Closeable, Runnable {
+    public static final int TICK_RATE = Integer.getInteger("io.tickRate", 50); // simulated ticks per second
+    public static final int SEND_RATE = Integer.getInteger("io.sendRate", TICK_RATE); // frames per second, clients interpolate between them
+    public static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(1) / Math.max(TICK_RATE, 1);
     public static final int CELL_SIZE = 30;
+    public static final int PLAYER_SPEED = 100; // in pixels per second
+    public static final int PLAYER_STEP = PLAYER_SPEED / Math.max(TICK_RATE, 1); // in pixels per tick
+    public static final int MAX_CATCH_UP_TICKS = Integer.getInteger("io.maxCatchUpTicks", 5); // more missed ticks are skipped
+    public static final int ARENAS = Integer.getInteger("io.arenas", Runtime.getRuntime().availableProcessors());
+    public static final int TICK_THREADS = Integer.getInteger("io.tickThreads", Math.min(ARENAS, Runtime.getRuntime().availableProcessors()));
+    public static final int MAX_VIEW = 1920; // in pixels, the clients draw no more of the arena on either side
+    // in cells, covers half of the view around the player and the cell it is between
+    public static final int INTEREST_RADIUS = Integer.getInteger("io.interestRadius", (MAX_VIEW / 2 + CELL_SIZE - 1) / CELL_SIZE + 1);
+    public static final int IO_THREADS = Integer.getInteger("io.ioThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 4));
+    public static final String TRANSPORT = System.getProperty("io.transport", "aio"); // aio, nio or blocking
+    public static final int EVENT_LOOPS = Integer.getInteger("io.eventLoops", IO_THREADS); // for nio
+    public static final int BACKLOG = Integer.getInteger("io.backlog", 1024); // pending connections not accepted yet
+    public static final int REPORT_INTERVAL = Integer.getInteger("io.reportInterval", 60); // in seconds, 0 disables
+    public static final int METRICS_PORT = Integer.getInteger("io.metricsPort", 7248); // on the loopback interface, 0 disables
+    // Given in frames and milliseconds and converted to ticks with the rates, a client is always a send interval behind
+    public static final int RESYNC_FRAMES = Integer.getInteger("io.resyncFrames", 64); // a client missing more gets snapshots
+    public static final int DROP_MILLIS = Integer.getInteger("io.dropMillis", 2000); // a client writing a frame longer is closed
+    public static final int RESYNC_TICKS = RESYNC_FRAMES * TICK_RATE / Math.max(SEND_RATE, 1);
+    public static final int DROP_TICKS = (int) ((long) DROP_MILLIS * TICK_RATE / 1000);
     public static final Random RANDOM = new Random();
+    public static final BufferPool BUFFERS = new BufferPool();
+    public static final WriteStats WRITES = new WriteStats();
+    public static final Metrics METRICS = new Metrics();
 
     // Instance
-    public final Arena arena = new Arena(this);
-    public final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> newThread(r, "AIO Thread"));
-    private final AsynchronousServerSocketChannel server;
+    private final ScheduledExecutorService[] tickExecutors = new ScheduledExecutorService[TICK_THREADS];
+    private final Arena[] arenas = new Arena[ARENAS];
+    private final Transport transport;
+    private final MetricsEndpoint metricsEndpoint;
+    // Reports scan the histograms and may block on the output, so they run apart from the arenas
+    private final ScheduledExecutorService reportExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = newThread(r, "Report Thread");
+        thread.setDaemon(true);
+        return thread;
+    });
     public final HandshakeProtocol handshakeProtocol = new HandshakeProtocol(this);
     public final GameProtocol gameProtocol = new GameProtocol(this);
-    private long ticksCount = 0L;
 
     public IOServer() throws IOException {
-        AsynchronousChannelGroup group = AsynchronousChannelGroup.withThreadPool(scheduler);
-        server = AsynchronousServerSocketChannel.open(group);
-        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        // Players have to stop exactly at the cell borders to turn
+        if (TICK_RATE <= 0 || PLAYER_SPEED % TICK_RATE != 0 || CELL_SIZE % PLAYER_STEP != 0) {
+            throw new IllegalArgumentException("Unsupported tick rate: " + TICK_RATE);
+        }
+        if (SEND_RATE <= 0 || SEND_RATE > TICK_RATE) {
+            throw new IllegalArgumentException("Send rate must be from 1 to the tick rate: " + SEND_RATE);
+        }
+        if (RESYNC_FRAMES <= 0) {
+            throw new IllegalArgumentException("Resync frames must be positive: " + RESYNC_FRAMES);
+        }
+        if (DROP_TICKS < TICK_RATE / SEND_RATE) {
+            throw new IllegalArgumentException("Drop time must be at least a send interval: " + DROP_MILLIS + " ms");
+        }
+        // Every arena is pinned to a single tick thread, so its state is never touched concurrently
+        for (int i = 0; i < tickExecutors.length; i++) {
+            String name = "Tick Thread #" + i;
+            tickExecutors[i] = Executors.newSingleThreadScheduledExecutor(r -> newThread(r, name));
+        }
+        for (int i = 0; i < arenas.length; i++) {
+            arenas[i] = new Arena(this, i, tickExecutors[i % tickExecutors.length]);
+        }
+
+        switch (TRANSPORT) {
+            case "aio":
+                transport = new AsyncTransport(this);
+                break;
+            case "nio":
+                transport = new SelectorTransport(this);
+                break;
+            case "blocking":
+                transport = new BlockingTransport(this);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown transport: " + TRANSPORT);
+        }
+        metricsEndpoint = METRICS_PORT > 0 ? new MetricsEndpoint(this) : null;
     }
 
     @Override
     public void run() {
-        scheduler.execute(() -> System.out.println("IO server (c) (tm) (r) v1.0 by anstkras and sashok724"));
-        scheduler.scheduleAtFixedRate(this::tick, 0L, TICK_RATE, TimeUnit.MILLISECONDS);
+        System.out.println("IO server (c) (tm) (r) v1.0 by anstkras and sashok724");
+        for (Arena arena : arenas) {
+            arena.start();
+        }
+        if (REPORT_INTERVAL > 0) {
+            reportExecutor.scheduleAtFixedRate(() -> {
+                System.out.println(BUFFERS);
+                System.out.println(WRITES);
+                System.out.println(METRICS);
+            }, REPORT_INTERVAL, REPORT_INTERVAL, TimeUnit.SECONDS);
+        }
         try {
-            server.bind(new InetSocketAddress(7247));
-            server.accept(null, this);
+            if (metricsEndpoint != null) {
+                metricsEndpoint.start(METRICS_PORT);
+            }
+            transport.start(new InetSocketAddress(7247));
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
@@ -47,39 +116,27 @@ public final class IOServer implements Closeable, Runnable, CompletionHandler<As
 
     @Override
     public void close() throws IOException {
-        server.close();
-    }
-
-    @Override
-    public void completed(AsynchronousSocketChannel result, Void attachment) {
-        handshakeProtocol.handshakeOp1.execute(new ChannelContext(result));
-        server.accept(null, this);
+        transport.close();
+        reportExecutor.shutdown();
+        if (metricsEndpoint != null) {
+            metricsEndpoint.close();
+        }
     }
 
-    @Override
-    public void failed(Throwable exc, Void attachment) {
-        try {
-            close();
-        } catch (IOException e) {
-            exc.addSuppressed(e);
-        }
-        exc.printStackTrace(); // TODO logging
+    public Arena[] arenas() {
+        return arenas.clone();
     }
 
-    private void tick() {
-        long start = System.nanoTime();
-        try {
-            arena.tick();
-        } catch (Throwable exc) {
-            System.err.println("Unrecoverable exception occurred");
-            exc.printStackTrace();
-            scheduler.shutdown();
-        } finally {
-            long diff = System.nanoTime() - start;
-            if (diff > 10_000_000L) {
-                System.err.println("Tick took more than 10ms: " + diff + "ns");
+    // Picks the arena with the fewest players and reserves a place in it for the new connection
+    public Arena leastLoadedArena() {
+        Arena result = arenas[0];
+        for (Arena arena : arenas) {
+            if (arena.load() < result.load()) {
+                result = arena;
             }
         }
+        result.reserve();
+        return result;
     }
 
     public static void main(String... args) throws Throwable {
@@ -87,7 +144,7 @@ public final class IOServer implements Closeable, Runnable, CompletionHandler<As
         server.run();
     }
 
-    private static Thread newThread(Runnable r, String name) {
+    public static Thread newThread(Runnable r, String name) {
         Thread thread = new Thread(r, name);
         thread.setDaemon(false);
         return thread;
@@ -0,0 +1,42 @@
+package io.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Single-producer single-consumer ring of inputs: the I/O thread offers, the arena thread polls
+public final class InputQueue {
+    public static final int EMPTY = -1;
+
+    private final int[] inputs;
+    private final int mask;
+    private final AtomicInteger head = new AtomicInteger();
+    private final AtomicInteger tail = new AtomicInteger();
+
+    public InputQueue(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        inputs = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    // returns false when the consumer fell behind and the input is dropped
+    public boolean offer(int input) {
+        int t = tail.get();
+        if (t - head.get() == inputs.length) {
+            return false;
+        }
+        inputs[t & mask] = input;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    public int poll() {
+        int h = head.get();
+        if (h == tail.get()) {
+            return EMPTY;
+        }
+        int input = inputs[h & mask];
+        head.lazySet(h + 1);
+        return input;
+    }
+}
@@ -0,0 +1,27 @@
+package io.server;
+
+// Where the tick budget goes and how the sockets keep up, times are in nanoseconds
+public final class Metrics {
+    public final Histogram tick = new Histogram("us", 1000L);
+    public final Histogram lag = new Histogram("us", 1000L); // tick start after its due time
+    public final Histogram movement = new Histogram("us", 1000L); // player moves without the captures
+    public final Histogram fill = new Histogram("us", 1000L); // captured territory fills
+    public final Histogram journal = new Histogram("us", 1000L); // changes collected from the journal
+    public final Histogram encode = new Histogram("us", 1000L); // frame parts encoded
+    public final Histogram write = new Histogram("us", 1000L); // frames queued and written to the sockets
+    public final Histogram flush = new Histogram("us", 1000L); // a frame from the first socket write to the last one
+    public final Histogram queue = new Histogram("KB", 1024L); // bytes of a client not written yet when a frame is due
+
+    @Override
+    public String toString() {
+        return "Tick: " + tick + "\n"
+                + "  lag: " + lag + "\n"
+                + "  movement: " + movement + "\n"
+                + "  fill: " + fill + "\n"
+                + "  journal: " + journal + "\n"
+                + "  encode: " + encode + "\n"
+                + "  write: " + write + "\n"
+                + "Flush: " + flush + "\n"
+                + "Queue: " + queue;
+    }
+}
@@ -0,0 +1,83 @@
+package io.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Plain text metrics on the loopback interface:
+// /metrics for the tick phases, the writes and the buffers, /connections for a line per client
+public final class MetricsEndpoint implements Closeable {
+    private static final String CONNECTIONS_HEADER = "arena\tcolor\tusername\tbytes in\tbytes out\tstall ms\tqueued bytes\tqueued buffers\tticks behind\tterritory %\n";
+
+    private final IOServer server;
+    private final HttpServer http;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> IOServer.newThread(r, "Metrics Thread"));
+
+    public MetricsEndpoint(IOServer server) throws IOException {
+        this.server = server;
+        http = HttpServer.create();
+        http.setExecutor(executor);
+        http.createContext("/metrics", exchange -> respond(exchange, this::metrics));
+        http.createContext("/connections", exchange -> respond(exchange, this::connections));
+    }
+
+    public void start(int port) throws IOException {
+        http.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.start();
+    }
+
+    @Override
+    public void close() {
+        http.stop(0);
+        executor.shutdown();
+    }
+
+    private String metrics() {
+        return IOServer.METRICS + "\n" + IOServer.WRITES + "\n" + IOServer.BUFFERS + "\n";
+    }
+
+    // Players belong to the arena threads, so every arena describes its own connections
+    private String connections() {
+        StringBuilder builder = new StringBuilder(CONNECTIONS_HEADER);
+        for (Arena arena : server.arenas()) {
+            CompletableFuture<String> lines = new CompletableFuture<>();
+            arena.execute(() -> {
+                StringBuilder arenaLines = new StringBuilder();
+                arena.describeConnections(arenaLines);
+                lines.complete(arenaLines.toString());
+            });
+            try {
+                builder.append(lines.get(1L, TimeUnit.SECONDS));
+            } catch (Exception e) {
+                builder.append(arena.id).append("\tunavailable: ").append(e).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+
+    private static void respond(HttpExchange exchange, Supplier<String> body) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] bytes = body.get().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+}
@@ -1,15 +1,11 @@
 package io.server;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.BitSet;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.IdentityHashMap;
-import java.util.LinkedHashSet;
-import java.util.List;
-import java.util.Set;
 
 public final class Player {
+    public static final int BYTES = 6;
+
     public final int color;
     public final String username;
     public final Arena arena;
@@ -22,41 +18,56 @@ public final class Player {
     private Direction direction;
     private Direction nextDirection = null;
     private boolean moving = false;
-    private final Set<Short> cells = new HashSet<>();
-    private final Set<Short> trails = new LinkedHashSet<>();
-
-    public boolean writing = false;
+    private final BitSet cells = new BitSet(Arena.HEIGHT * Arena.WIDTH); // maintained by the arena
+    private int cellsCount = 0;
+    private final BitSet trailCells = new BitSet(Arena.HEIGHT * Arena.WIDTH);
+    private final IntList trail = new IntList(64); // in the order of drawing
+    private int minX, minY, maxX, maxY;
+
+    public final InputQueue inputs = new InputQueue(16); // see input(direction, seq)
+    public int inputSeq = 0; // of the last input polled, sent back in the frames for the client prediction
+    public volatile boolean writing = false;
     public boolean dead = false;
-    public final Set<Player> updatedPlayers = Collections.newSetFromMap(new IdentityHashMap<>());
-    public final List<Player> addedPlayers = new ArrayList<>();
-    public final List<Player> removedPlayers = new ArrayList<>();
-    public final BitSet updatedCells = new BitSet(Arena.HEIGHT * Arena.WIDTH);
-    public final BitSet updatedTrails = new BitSet(Arena.HEIGHT * Arena.WIDTH);
+    public int addedTick = 0;
+    public int updatedTick = 0;
+    public int region = -1; // maintained by the arena
 
     public Player(ChannelContext ctx, Arena arena, int color, String username) {
+        // TODO check correctness
+        this(ctx, arena, color, username, 3 + IOServer.RANDOM.nextInt(Arena.WIDTH - 6), // TODO delegate to arena
+                3 + IOServer.RANDOM.nextInt(Arena.HEIGHT - 6), Direction.VALUES[IOServer.RANDOM.nextInt(Direction.VALUES.length)]);
+    }
+
+    public Player(ChannelContext ctx, Arena arena, int color, String username, int cellX, int cellY, Direction direction) {
         this.ctx = ctx;
         this.arena = arena;
         this.color = color;
         this.username = username;
-        // TODO check correctness
-        direction = Direction.VALUES[IOServer.RANDOM.nextInt(Direction.VALUES.length)];
-        cellX = (3 + IOServer.RANDOM.nextInt(Arena.WIDTH - 6)); // TODO delegate to arena
-        cellY = (3 + IOServer.RANDOM.nextInt(Arena.HEIGHT - 6));
+        this.direction = direction;
+        this.cellX = cellX;
+        this.cellY = cellY;
+        minX = maxX = cellX;
+        minY = maxY = cellY;
     }
 
     public void tick() {
+        for (int input; (input = inputs.poll()) != InputQueue.EMPTY; ) {
+            nextDirection(Direction.VALUES[input & 3]);
+            inputSeq = input >>> 2;
+        }
+
         boolean isIntegral = fracX == 0 && fracY == 0;
         if (isIntegral && nextDirection != null) {
             direction = nextDirection;
             nextDirection = null;
         }
 
-        fracX += direction.xDirection * 2;
+        fracX += direction.xDirection * IOServer.PLAYER_STEP;
         if (Math.abs(fracX) >= IOServer.CELL_SIZE) {
             fracX -= IOServer.CELL_SIZE * Integer.signum(fracX);
             cellX += direction.xDirection;
         }
-        fracY += direction.yDirection * 2;
+        fracY += direction.yDirection * IOServer.PLAYER_STEP;
         if (Math.abs(fracY) >= IOServer.CELL_SIZE) {
             fracY -= IOServer.CELL_SIZE * Integer.signum(fracY);
             cellY += direction.yDirection;
@@ -78,61 +89,35 @@ public final class Player {
             // TODO Kill other player
         }
         if (arena.cell(nextX, nextY) == color) {
-            if (!trails.isEmpty()) {
-                boolean[][] visited = new boolean[Arena.HEIGHT][Arena.WIDTH];
-                List<Short> path = new ArrayList<>(Arena.HEIGHT * Arena.WIDTH);
-                for (short trail : trails) {
-                    int x0 = Util.firstFromShort(trail);
-                    int y0 = Util.secondFromShort(trail);
-                    arena.trail(x0, y0, 0);
-                    arena.cell(x0, y0, color);
-                    cells.add(trail);
-
-                    visited[y0][x0] = true;
-                    for (Direction direction : Direction.VALUES) {
-                        int x = x0 + direction.xDirection;
-                        int y = y0 + direction.yDirection;
-                        if (dfs(x, y, visited, path)) {
-                            for (short cell : path) {
-                                arena.cell(Util.firstFromShort(cell), Util.secondFromShort(cell), color);
-                                cells.add(cell);
-                            }
-                        }
-                        path.clear();
-                    }
+            if (!trail.isEmpty()) {
+                long start = System.nanoTime();
+                // The trail is a part of the border, so look for enclosed cells before turning it into cells
+                IntList enclosed = arena.territoryFill.enclosed(arena, color, minX, minY, maxX, maxY);
+                for (int i = 0; i < trail.size(); i++) {
+                    int index = trail.get(i);
+                    int x = index % Arena.WIDTH;
+                    int y = index / Arena.WIDTH;
+                    arena.trail(x, y, 0);
+                    cell(x, y);
+                }
+                for (int i = 0; i < enclosed.size(); i++) {
+                    int index = enclosed.get(i);
+                    cell(index % Arena.WIDTH, index / Arena.WIDTH);
                 }
-                trails.clear();
+                trail.clear();
+                trailCells.clear();
+                arena.fillNanos += System.nanoTime() - start;
             }
             return;
         }
 
         arena.trail(nextX, nextY, color);
-        trails.add(Util.shortFromBytes(nextX, nextY));
-    }
-
-    public boolean dfs(int x0, int y0, boolean[][] visited, List<Short> path) {
-        if (x0 < 0 || y0 < 0 || x0 >= Arena.WIDTH || y0 >= Arena.HEIGHT) {
-            return false;
-        }
-        if (visited[y0][x0]) {
-            return true;
-        }
-
-        visited[y0][x0] = true;
-        if (arena.cell(x0, y0) == color || arena.trail(x0, y0) == color) {
-            return true;
-        }
-
-        path.add(Util.shortFromBytes(x0, y0));
-        for (Direction direction : Direction.VALUES) {
-            int x = x0 + direction.xDirection;
-            int y = y0 + direction.yDirection;
-            if (!dfs(x, y, visited, path)) {
-                return false;
-            }
+        int index = nextY * Arena.WIDTH + nextX;
+        if (!trailCells.get(index)) {
+            trailCells.set(index);
+            trail.add(index);
+            extendBounds(nextX, nextY);
         }
-
-        return true;
     }
 
     public int cellX() {
@@ -143,12 +128,33 @@ public final class Player {
         return cellY;
     }
 
-    public Set<Short> cells() {
-        return Collections.unmodifiableSet(cells);
+    public int cellsCount() {
+        return cellsCount;
+    }
+
+    public double territoryPercentage() {
+        return cellsCount * 100.0D / (Arena.WIDTH * Arena.HEIGHT);
+    }
+
+    // iterates owned cells like BitSet.nextSetBit, -1 after the last one
+    public int nextCell(int fromIndex) {
+        return cells.nextSetBit(fromIndex);
     }
 
-    public Set<Short> trail() {
-        return Collections.unmodifiableSet(trails);
+    public int trailLength() {
+        return trail.size();
+    }
+
+    public int trailCell(int i) {
+        return trail.get(i);
+    }
+
+    // called by the arena when the cell gets or loses the color of the player
+    public void cellChanged(int index, boolean owned) {
+        if (owned != cells.get(index)) {
+            cells.set(index, owned);
+            cellsCount += owned ? 1 : -1;
+        }
     }
 
     public int fracX() {
@@ -171,6 +177,11 @@ public final class Player {
         return direction.ordinal();
     }
 
+    // The direction with the sequence number the client gave it, as an input of the queue
+    public static int input(Direction direction, int seq) {
+        return (seq & 0x1FFFFFFF) << 2 | direction.ordinal();
+    }
+
     public void nextDirection(Direction direction) {
         nextDirection = (direction == this.direction) ? null : direction;
     }
@@ -183,21 +194,36 @@ public final class Player {
         moving = true;
     }
 
-    public void writeUserName(ChannelContext ctx) {
-        ctx.writeStringWithLength(username);
+    public int userNameLength() {
+        return Short.BYTES + username.length() * Character.BYTES;
+    }
+
+    public void writeUserName(ByteBuffer buffer) {
+        buffer.putShort((short) username.length());
+        for (int i = 0; i < username.length(); i++) {
+            buffer.putChar(username.charAt(i));
+        }
     }
 
-    public void write(ChannelContext ctx) {
-        ctx.writeByte((byte) color);
-        ctx.writeByte((byte) cellX);
-        ctx.writeByte((byte) fracX);
-        ctx.writeByte((byte) cellY);
-        ctx.writeByte((byte) fracY);
-        ctx.writeByte((byte) direction());
+    public void write(ByteBuffer buffer) {
+        buffer.put((byte) color);
+        buffer.put((byte) cellX);
+        buffer.put((byte) fracX);
+        buffer.put((byte) cellY);
+        buffer.put((byte) fracY);
+        buffer.put((byte) direction());
     }
 
     public void cell(int x, int y) {
         arena.cell(x, y, color);
-        cells.add(Util.shortFromBytes(x, y));
+        extendBounds(x, y);
+    }
+
+    // bounds of everything ever owned, it is enough for them to contain the territory
+    private void extendBounds(int x, int y) {
+        minX = Math.min(minX, x);
+        minY = Math.min(minY, y);
+        maxX = Math.max(maxX, x);
+        maxY = Math.max(maxY, y);
     }
 }
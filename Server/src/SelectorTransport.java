@@ -0,0 +1,338 @@
+package io.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+// Non-blocking channels served by a few event loops, each selects over its own connections
+// and completes their operations itself, so a wakeup handles every socket which became ready
+public final class SelectorTransport implements Transport {
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+
+    private final IOServer server;
+    private final ServerSocketChannel channel;
+    private final EventLoop[] loops = new EventLoop[IOServer.EVENT_LOOPS];
+    private int accepted = 0;
+
+    public SelectorTransport(IOServer server) throws IOException {
+        this.server = server;
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        channel = ServerSocketChannel.open();
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.configureBlocking(false);
+    }
+
+    @Override
+    public void start(InetSocketAddress address) throws IOException {
+        channel.bind(address, IOServer.BACKLOG);
+        channel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        for (EventLoop loop : loops) {
+            loop.selector.close();
+        }
+    }
+
+    // Runs on the first loop, connections are spread over the loops in turn
+    private void accept() throws IOException {
+        for (SocketChannel socket = channel.accept(); socket != null; socket = channel.accept()) {
+            socket.configureBlocking(false);
+            EventLoop loop = loops[accepted++ % loops.length];
+            SelectorConnection connection = new SelectorConnection(loop, socket);
+            loop.submit(() -> {
+                try {
+                    connection.key = connection.channel.register(loop.selector, 0, connection);
+                } catch (IOException e) {
+                    try {
+                        connection.channel.close();
+                    } catch (IOException exc) {
+                        e.addSuppressed(exc);
+                    }
+                    e.printStackTrace(); // TODO logging
+                    return;
+                }
+                server.handshakeProtocol.handshakeOp1.execute(new ChannelContext(connection));
+            });
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private long timeoutsCheck = System.nanoTime();
+
+        private EventLoop(int id) throws IOException {
+            selector = Selector.open();
+            thread = IOServer.newThread(this, "Event Loop #" + id);
+        }
+
+        private boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        // Tasks of other threads run after the current selection
+        private void submit(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (selector.isOpen()) {
+                try {
+                    selector.select(this::process, 1000L);
+                    for (Runnable task; (task = tasks.poll()) != null; ) {
+                        task.run();
+                    }
+                    long now = System.nanoTime();
+                    if (now - timeoutsCheck > TimeUnit.SECONDS.toNanos(1)) {
+                        timeoutsCheck = now;
+                        for (SelectionKey key : selector.keys()) {
+                            if (key.attachment() instanceof SelectorConnection) {
+                                ((SelectorConnection) key.attachment()).checkTimeouts(now);
+                            }
+                        }
+                    }
+                } catch (Throwable exc) {
+                    if (selector.isOpen()) {
+                        exc.printStackTrace(); // TODO logging
+                    }
+                }
+            }
+        }
+
+        private void process(SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                try {
+                    accept();
+                } catch (IOException e) {
+                    e.printStackTrace(); // TODO logging
+                }
+                return;
+            }
+
+            SelectorConnection connection = (SelectorConnection) key.attachment();
+            if (key.isWritable()) {
+                connection.writable();
+            }
+            if (key.isValid() && key.isReadable()) {
+                connection.readable();
+            }
+        }
+    }
+
+    // Operations of a connection run on its loop, at most one read and one write at a time like in AIO
+    private static final class SelectorConnection implements Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        private ByteBuffer readBuffer;
+        private ChannelContext readCtx;
+        private CompletionHandler<Integer, ChannelContext> readHandler;
+        private long readDeadline;
+
+        private ByteBuffer[] writeBuffers;
+        private int writeOffset, writeEnd;
+        private long written;
+        private ChannelContext writeCtx;
+        private CompletionHandler<Long, ChannelContext> writeHandler;
+        private long writeDeadline;
+
+        private SelectorConnection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        @Override
+        public void read(ByteBuffer buffer, ChannelContext ctx, CompletionHandler<Integer, ChannelContext> handler) {
+            if (loop.inLoop()) {
+                startRead(buffer, ctx, handler);
+            } else {
+                loop.submit(() -> startRead(buffer, ctx, handler));
+            }
+        }
+
+        @Override
+        public void write(ByteBuffer[] buffers, int offset, int length, ChannelContext ctx, CompletionHandler<Long, ChannelContext> handler) {
+            if (loop.inLoop()) {
+                startWrite(buffers, offset, length, ctx, handler);
+            } else {
+                loop.submit(() -> startWrite(buffers, offset, length, ctx, handler));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            // pending operations fail like in AIO, after the current completion returns
+            loop.submit(this::failPending);
+        }
+
+        private void startRead(ByteBuffer buffer, ChannelContext ctx, CompletionHandler<Integer, ChannelContext> handler) {
+            if (!channel.isOpen()) {
+                handler.failed(new AsynchronousCloseException(), ctx);
+                return;
+            }
+            readBuffer = buffer;
+            readCtx = ctx;
+            readHandler = handler;
+            readDeadline = System.nanoTime() + TIMEOUT;
+            interest(SelectionKey.OP_READ, true);
+        }
+
+        private void readable() {
+            ChannelContext ctx = readCtx;
+            CompletionHandler<Integer, ChannelContext> handler = readHandler;
+            if (handler == null) {
+                interest(SelectionKey.OP_READ, false);
+                return;
+            }
+
+            int result;
+            try {
+                result = channel.read(readBuffer);
+            } catch (Throwable exc) {
+                clearRead();
+                handler.failed(exc, ctx);
+                return;
+            }
+            if (result == 0) {
+                return;
+            }
+            clearRead();
+            handler.completed(result, ctx);
+
+            // The interest stays when the completion asked for the next read, which is the usual case
+            if (readHandler == null) {
+                interest(SelectionKey.OP_READ, false);
+            }
+        }
+
+        private void startWrite(ByteBuffer[] buffers, int offset, int length, ChannelContext ctx, CompletionHandler<Long, ChannelContext> handler) {
+            if (!channel.isOpen()) {
+                handler.failed(new AsynchronousCloseException(), ctx);
+                return;
+            }
+            writeBuffers = buffers;
+            writeOffset = offset;
+            writeEnd = offset + length;
+            written = 0;
+            writeCtx = ctx;
+            writeHandler = handler;
+            writeDeadline = System.nanoTime() + TIMEOUT;
+            writable();
+        }
+
+        // Writes right away and waits for the socket only when its buffer is full
+        private void writable() {
+            ChannelContext ctx = writeCtx;
+            CompletionHandler<Long, ChannelContext> handler = writeHandler;
+            if (handler == null) {
+                interest(SelectionKey.OP_WRITE, false);
+                return;
+            }
+
+            try {
+                while (writeOffset < writeEnd) {
+                    if (!writeBuffers[writeOffset].hasRemaining()) {
+                        writeOffset++;
+                        continue;
+                    }
+                    long result = channel.write(writeBuffers, writeOffset, writeEnd - writeOffset);
+                    if (result == 0) {
+                        interest(SelectionKey.OP_WRITE, true);
+                        return;
+                    }
+                    written += result;
+                }
+            } catch (Throwable exc) {
+                clearWrite();
+                interest(SelectionKey.OP_WRITE, false);
+                handler.failed(exc, ctx);
+                return;
+            }
+
+            long result = written;
+            clearWrite();
+            interest(SelectionKey.OP_WRITE, false);
+            handler.completed(result, ctx);
+        }
+
+        private void checkTimeouts(long now) {
+            if (readHandler != null && now - readDeadline > 0) {
+                ChannelContext ctx = readCtx;
+                CompletionHandler<Integer, ChannelContext> handler = readHandler;
+                clearRead();
+                handler.failed(new InterruptedByTimeoutException(), ctx);
+            }
+            if (writeHandler != null && now - writeDeadline > 0) {
+                ChannelContext ctx = writeCtx;
+                CompletionHandler<Long, ChannelContext> handler = writeHandler;
+                clearWrite();
+                handler.failed(new InterruptedByTimeoutException(), ctx);
+            }
+        }
+
+        private void failPending() {
+            if (readHandler != null) {
+                ChannelContext ctx = readCtx;
+                CompletionHandler<Integer, ChannelContext> handler = readHandler;
+                clearRead();
+                handler.failed(new AsynchronousCloseException(), ctx);
+            }
+            if (writeHandler != null) {
+                ChannelContext ctx = writeCtx;
+                CompletionHandler<Long, ChannelContext> handler = writeHandler;
+                clearWrite();
+                handler.failed(new AsynchronousCloseException(), ctx);
+            }
+        }
+
+        private void clearRead() {
+            readBuffer = null;
+            readCtx = null;
+            readHandler = null;
+        }
+
+        private void clearWrite() {
+            writeBuffers = null;
+            writeCtx = null;
+            writeHandler = null;
+        }
+
+        private void interest(int op, boolean enabled) {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops = key.interestOps();
+            int next = enabled ? ops | op : ops & ~op;
+            if (next != ops) {
+                key.interestOps(next);
+            }
+        }
+    }
+}
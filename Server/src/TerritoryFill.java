@@ -0,0 +1,90 @@
+package io.server;
+
+import java.util.Arrays;
+
+// Finds cells enclosed by a territory without recursion and without allocations:
+// everything inside the bounds which is reachable from the bounds' border is outside,
+// the rest which is not owned is enclosed
+public final class TerritoryFill {
+    private final int width;
+    private final int height;
+    private final int[] visited;
+    private final int[] stack;
+    private final IntList enclosed;
+    private int generation = 0;
+
+    public TerritoryFill(int width, int height) {
+        this.width = width;
+        this.height = height;
+        visited = new int[width * height];
+        stack = new int[width * height];
+        enclosed = new IntList(width * height);
+    }
+
+    // Returns indexes of the cells enclosed by cells and trail of the color, the list is reused by the next call
+    public IntList enclosed(Arena arena, int color, int minX, int minY, int maxX, int maxY) {
+        if (++generation == 0) {
+            Arrays.fill(visited, 0);
+            generation = 1;
+        }
+        enclosed.clear();
+
+        // A ring around the bounds is never owned, so the border of the extended bounds is outside
+        minX = Math.max(minX - 1, 0);
+        minY = Math.max(minY - 1, 0);
+        maxX = Math.min(maxX + 1, width - 1);
+        maxY = Math.min(maxY + 1, height - 1);
+
+        int size = 0;
+        for (int x = minX; x <= maxX; x++) {
+            size = push(arena, color, x, minY, size);
+            size = push(arena, color, x, maxY, size);
+        }
+        for (int y = minY + 1; y < maxY; y++) {
+            size = push(arena, color, minX, y, size);
+            size = push(arena, color, maxX, y, size);
+        }
+
+        while (size > 0) {
+            int index = stack[--size];
+            int x = index % width;
+            int y = index / width;
+            if (x > minX) {
+                size = push(arena, color, x - 1, y, size);
+            }
+            if (x < maxX) {
+                size = push(arena, color, x + 1, y, size);
+            }
+            if (y > minY) {
+                size = push(arena, color, x, y - 1, size);
+            }
+            if (y < maxY) {
+                size = push(arena, color, x, y + 1, size);
+            }
+        }
+
+        for (int y = minY + 1; y < maxY; y++) {
+            for (int x = minX + 1; x < maxX; x++) {
+                int index = y * width + x;
+                if (visited[index] != generation && !isOwned(arena, color, index)) {
+                    enclosed.add(index);
+                }
+            }
+        }
+        return enclosed;
+    }
+
+    private int push(Arena arena, int color, int x, int y, int size) {
+        int index = y * width + x;
+        if (visited[index] == generation || isOwned(arena, color, index)) {
+            return size;
+        }
+        visited[index] = generation;
+        stack[size] = index;
+        return size + 1;
+    }
+
+    private static boolean isOwned(Arena arena, int color, int index) {
+        return arena.cellAt(index) == color || arena.trailAt(index) == color;
+    }
+}
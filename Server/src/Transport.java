@@ -0,0 +1,10 @@
+package io.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+// Accepts connections and serves them with the handshake and game protocols, selected by io.transport
+public interface Transport extends Closeable {
+    void start(InetSocketAddress address) throws IOException;
+}
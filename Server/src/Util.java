@@ -1,9 +1,42 @@
 package io.server;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+
 public final class Util {
+    private static final MethodHandle START_VIRTUAL_THREAD = findStartVirtualThread();
+
     private Util() {
     }
 
+    // Virtual threads appeared in Java 21, older runtimes get daemon platform threads
+    public static Thread startVirtualThread(Runnable task) {
+        if (START_VIRTUAL_THREAD != null) {
+            try {
+                return (Thread) START_VIRTUAL_THREAD.invokeExact(task);
+            } catch (UnsupportedOperationException ignored) {
+                // preview feature is disabled
+            } catch (Throwable exc) {
+                throw new IllegalStateException(exc);
+            }
+        }
+        Thread thread = new Thread(task, "Connection Thread");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static MethodHandle findStartVirtualThread() {
+        try {
+            return MethodHandles.publicLookup().findStatic(Thread.class, "startVirtualThread",
+                    MethodType.methodType(Thread.class, Runnable.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
     public static int firstFromShort(short s) {
         return (s & 0xFF00) >> Byte.SIZE;
     }
@@ -15,4 +48,21 @@ public final class Util {
     public static short shortFromBytes(int first, int second) {
         return (short) (((first & 0xFF) << Byte.SIZE) | (second & 0xFF));
     }
+
+    public static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
 }
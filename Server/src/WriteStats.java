@@ -0,0 +1,21 @@
+package io.server;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Outcomes of the frames the arenas try to send, to see how many clients keep up
+public final class WriteStats {
+    public final LongAdder sent = new LongAdder(); // frames written
+    public final LongAdder coalesced = new LongAdder(); // ticks merged into a later frame of a busy client
+    public final LongAdder resynced = new LongAdder(); // frames sent as snapshots of all the regions
+    public final LongAdder dropped = new LongAdder(); // clients closed for being too far behind
+    public final LongAdder bytes = new LongAdder();
+    public final LongAccumulator maxOutstanding = new LongAccumulator(Math::max, 0L);
+
+    @Override
+    public String toString() {
+        return "Frames: " + sent.sum() + " sent (" + (bytes.sum() >> 10) + " KB), " + coalesced.sum() + " coalesced, "
+                + resynced.sum() + " resynced, " + dropped.sum() + " clients dropped, "
+                + maxOutstanding.get() + " bytes outstanding at most";
+    }
+}